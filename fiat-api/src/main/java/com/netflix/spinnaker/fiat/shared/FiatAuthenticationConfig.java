@@ -25,7 +25,6 @@ import com.squareup.okhttp.OkHttpClient;
 import java.util.concurrent.TimeUnit;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
-import lombok.val;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
@@ -40,7 +39,6 @@ import org.springframework.security.web.authentication.AnonymousAuthenticationFi
 import retrofit.Endpoints;
 import retrofit.RestAdapter;
 import retrofit.client.OkClient;
-import retrofit.converter.JacksonConverter;
 
 @Slf4j
 @EnableWebSecurity
@@ -59,12 +57,8 @@ public class FiatAuthenticationConfig {
   public FiatService fiatService(
       FiatClientConfigurationProperties fiatConfigurationProperties,
       SpinnakerRequestInterceptor interceptor,
-      OkHttpClientConfiguration okHttpClientConfiguration) {
-    // New role providers break deserialization if this is not enabled.
-    val objectMapper = new ObjectMapper();
-    objectMapper.enable(DeserializationFeature.READ_UNKNOWN_ENUM_VALUES_AS_NULL);
-    objectMapper.disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
-
+      OkHttpClientConfiguration okHttpClientConfiguration,
+      UserPermissionViewConverter fiatUserPermissionViewConverter) {
     OkHttpClient okHttpClient = okHttpClientConfiguration.create();
 
     if (fiatConfigurationProperties.getConnectTimeoutMs() != null) {
@@ -81,13 +75,29 @@ public class FiatAuthenticationConfig {
         .setEndpoint(Endpoints.newFixedEndpoint(fiatConfigurationProperties.getBaseUrl()))
         .setRequestInterceptor(interceptor)
         .setClient(new OkClient(okHttpClient))
-        .setConverter(new JacksonConverter(objectMapper))
+        .setConverter(fiatUserPermissionViewConverter)
         .setLogLevel(retrofitLogLevel)
         .setLog(new Slf4jRetrofitLogger(FiatService.class))
         .build()
         .create(FiatService.class);
   }
 
+  /**
+   * Reads fiat's responses, both for the {@link FiatService} client and for the permission views
+   * the {@link FiatPermissionEvaluator} fetches as raw responses.
+   */
+  @Bean
+  UserPermissionViewConverter fiatUserPermissionViewConverter() {
+    return new UserPermissionViewConverter(fiatObjectMapper());
+  }
+
+  static ObjectMapper fiatObjectMapper() {
+    // New role providers break deserialization if this is not enabled.
+    return new ObjectMapper()
+        .enable(DeserializationFeature.READ_UNKNOWN_ENUM_VALUES_AS_NULL)
+        .disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+  }
+
   @Bean
   FiatWebSecurityConfigurerAdapter fiatSecurityConfig(FiatStatus fiatStatus) {
     return new FiatWebSecurityConfigurerAdapter(fiatStatus);
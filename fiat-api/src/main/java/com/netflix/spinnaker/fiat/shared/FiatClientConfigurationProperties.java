@@ -52,7 +52,54 @@ public class FiatClientConfigurationProperties {
   public static class PermissionsCache {
     private Integer maxEntries = 1000;
 
+    /**
+     * When set, bounds the cache by the estimated heap size of the cached views in bytes instead of
+     * by {@code maxEntries}, as the views of users with broad access can be orders of magnitude
+     * larger than those of others.
+     */
+    private Long maxWeightBytes;
+
     private Integer expiresAfterWriteSeconds = 20;
+
+    /**
+     * When set, entries older than this are reloaded asynchronously on the next access while the
+     * cached value keeps being served. Disabled by default.
+     */
+    private Integer refreshAfterWriteSeconds;
+
+    /**
+     * How long past {@code expiresAfterWriteSeconds} an entry may still be served (and reloaded in
+     * the background) while fiat is slow or unavailable.
+     */
+    private Integer staleWhileRevalidateSeconds = 0;
+
+    /** Number of threads used to reload entries in the background. */
+    private Integer refreshThreads = 2;
+
+    /** Maximum number of users requested from fiat at once when prefetching permissions. */
+    private Integer prefetchBatchSize = 200;
+
+    /**
+     * How long the result of a canCreate check is shared with identical checks by the same user,
+     * including those made while it is still in flight.
+     */
+    private Integer canCreateExpiresAfterWriteSeconds = 5;
+
+    /**
+     * Poll fiat for users whose permissions changed and drop them from the cache, rather than
+     * relying on expiry alone. Requires a fiat server that tracks changes. Polls every {@code
+     * services.fiat.cache.changes-poll-interval-ms} (5000 by default).
+     *
+     * <p>Changes fiat can't attribute to single users drop every cached user. With fiat's {@code
+     * fiat.redis.repository.normalize-resources} enabled, that includes any change to the body of
+     * an account, application, service account or build service.
+     */
+    private boolean invalidateOnChanges = false;
+
+    public boolean isRefreshEnabled() {
+      return (refreshAfterWriteSeconds != null && refreshAfterWriteSeconds > 0)
+          || (staleWhileRevalidateSeconds != null && staleWhileRevalidateSeconds > 0);
+    }
   }
 
   @Data
@@ -16,37 +16,54 @@
 
 package com.netflix.spinnaker.fiat.shared;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.CacheLoader;
 import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.netflix.spectator.api.Counter;
 import com.netflix.spectator.api.Id;
 import com.netflix.spectator.api.Registry;
 import com.netflix.spinnaker.fiat.model.Authorization;
+import com.netflix.spinnaker.fiat.model.PermissionChanges;
 import com.netflix.spinnaker.fiat.model.UserPermission;
 import com.netflix.spinnaker.fiat.model.resources.Account;
-import com.netflix.spinnaker.fiat.model.resources.Authorizable;
 import com.netflix.spinnaker.fiat.model.resources.ResourceType;
 import com.netflix.spinnaker.kork.exceptions.IntegrationException;
 import com.netflix.spinnaker.kork.telemetry.caffeine.CaffeineStatsCounter;
 import com.netflix.spinnaker.security.AuthenticatedRequest;
 import com.netflix.spinnaker.security.User;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 import javax.annotation.Nonnull;
+import lombok.Value;
 import lombok.extern.slf4j.Slf4j;
 import lombok.val;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.security.access.PermissionEvaluator;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
@@ -54,20 +71,56 @@ import org.springframework.stereotype.Component;
 import org.springframework.util.backoff.BackOffExecution;
 import org.springframework.util.backoff.ExponentialBackOff;
 import retrofit.RetrofitError;
+import retrofit.client.Response;
 
 @Component
 @Slf4j
 public class FiatPermissionEvaluator implements PermissionEvaluator {
   private static final ThreadLocal<AuthorizationFailure> authorizationFailure = new ThreadLocal<>();
 
+  /** Parsed resource types and authorizations by the strings they were parsed from. */
+  private static final Map<String, ResourceType> resourceTypes = new ConcurrentHashMap<>();
+
+  private static final Map<String, Authorization> authorizations = new ConcurrentHashMap<>();
+
   private final Registry registry;
   private final FiatService fiatService;
   private final FiatStatus fiatStatus;
 
   private final Cache<String, UserPermission.View> permissionsCache;
 
+  /** Records the hits {@link #getPermission} answers without going through the cache's stats. */
+  private final CaffeineStatsCounter permissionsCacheStats;
+
+  private final Cache<CanCreateKey, Boolean> canCreateCache;
+
+  private final ObjectMapper objectMapper = FiatAuthenticationConfig.fiatObjectMapper();
+
+  /** Reads the views fetched as raw responses, to see their ETags. */
+  private UserPermissionViewConverter viewConverter = new UserPermissionViewConverter(objectMapper);
+
+  /** Loads and refreshes permissions, keeping their ETags, if refreshes are enabled. */
+  private final PermissionsCacheLoader permissionsLoader;
+
+  /** The ETags of the cached views fiat tagged, by username. */
+  private final Map<String, TaggedView> etags = new ConcurrentHashMap<>();
+
+  private final boolean invalidateOnChanges;
+
+  /** The last permission change sequence number seen, null until the first poll. */
+  private final AtomicReference<Long> changesSequence = new AtomicReference<>();
+
   private final Id getPermissionCounterId;
 
+  /** Counts the permission lookups answered from the cache, which are the vast majority. */
+  private final Counter cachedPermissionCounter;
+
+  private final Counter refreshedPermissionCounter;
+
+  private final Id prefetchCounterId;
+
+  private final int prefetchBatchSize;
+
   private final RetryHandler retryHandler;
 
   interface RetryHandler {
@@ -133,16 +186,161 @@ public class FiatPermissionEvaluator implements PermissionEvaluator {
     this.fiatService = fiatService;
     this.fiatStatus = fiatStatus;
     this.retryHandler = retryHandler;
+    this.permissionsCacheStats = new CaffeineStatsCounter(registry, "fiat.permissionsCache");
+
+    FiatClientConfigurationProperties.PermissionsCache cacheConfig = configProps.getCache();
+    Caffeine<Object, Object> cacheBuilder =
+        Caffeine.newBuilder().recordStats(() -> permissionsCacheStats);
+    if (cacheConfig.getMaxWeightBytes() != null) {
+      cacheBuilder
+          .maximumWeight(cacheConfig.getMaxWeightBytes())
+          .weigher(new UserPermissionViewWeigher());
+    } else {
+      cacheBuilder.maximumSize(cacheConfig.getMaxEntries());
+    }
 
-    this.permissionsCache =
+    if (cacheConfig.isRefreshEnabled()) {
+      // Entries are reloaded in the background once they are older than the refresh interval and
+      // are only evicted (forcing a blocking load) once the stale grace period has also elapsed.
+      long expiresAfterWriteSeconds = cacheConfig.getExpiresAfterWriteSeconds();
+      long refreshAfterWriteSeconds =
+          Optional.ofNullable(cacheConfig.getRefreshAfterWriteSeconds())
+              .filter(seconds -> seconds > 0)
+              .map(Integer::longValue)
+              .orElse(expiresAfterWriteSeconds);
+      long staleWhileRevalidateSeconds =
+          Optional.ofNullable(cacheConfig.getStaleWhileRevalidateSeconds()).orElse(0);
+
+      this.permissionsLoader = new PermissionsCacheLoader();
+      ExecutorService refreshExecutor =
+          Executors.newFixedThreadPool(
+              cacheConfig.getRefreshThreads(),
+              runnable -> {
+                Thread thread = new Thread(runnable, "fiat-permissions-refresh");
+                thread.setDaemon(true);
+                return thread;
+              });
+      this.permissionsCache =
+          cacheBuilder
+              .refreshAfterWrite(refreshAfterWriteSeconds, TimeUnit.SECONDS)
+              .expireAfterWrite(
+                  Math.max(
+                      expiresAfterWriteSeconds + staleWhileRevalidateSeconds,
+                      refreshAfterWriteSeconds + 1),
+                  TimeUnit.SECONDS)
+              .executor(refreshExecutor)
+              .<String, UserPermission.View>removalListener(
+                  (username, view, cause) -> {
+                    if (cause != RemovalCause.REPLACED) {
+                      etags.remove(username);
+                    }
+                  })
+              .build(permissionsLoader);
+    } else {
+      this.permissionsLoader = null;
+      this.permissionsCache =
+          cacheBuilder
+              .expireAfterWrite(cacheConfig.getExpiresAfterWriteSeconds(), TimeUnit.SECONDS)
+              .build();
+    }
+
+    this.canCreateCache =
         Caffeine.newBuilder()
-            .maximumSize(configProps.getCache().getMaxEntries())
-            .expireAfterWrite(
-                configProps.getCache().getExpiresAfterWriteSeconds(), TimeUnit.SECONDS)
-            .recordStats(() -> new CaffeineStatsCounter(registry, "fiat.permissionsCache"))
+            .maximumSize(cacheConfig.getMaxEntries())
+            .expireAfterWrite(cacheConfig.getCanCreateExpiresAfterWriteSeconds(), TimeUnit.SECONDS)
+            .recordStats(() -> new CaffeineStatsCounter(registry, "fiat.canCreateCache"))
             .build();
 
     this.getPermissionCounterId = registry.createId("fiat.getPermission");
+    this.cachedPermissionCounter =
+        registry.counter(getPermissionCounterId.withTag("cached", true).withTag("success", true));
+    this.refreshedPermissionCounter =
+        registry.counter(getPermissionCounterId.withTag("refresh", true));
+    this.prefetchCounterId = registry.createId("fiat.prefetchPermission");
+    this.invalidateOnChanges = cacheConfig.isInvalidateOnChanges();
+    this.prefetchBatchSize = Math.max(1, cacheConfig.getPrefetchBatchSize());
+  }
+
+  /**
+   * Reads the views of fiat's responses with the converter the {@link FiatService} client uses, so
+   * both read them alike.
+   */
+  @Autowired(required = false)
+  void setViewConverter(UserPermissionViewConverter viewConverter) {
+    this.viewConverter = viewConverter;
+  }
+
+  /**
+   * Loads permissions, keeping the ETag fiat returned for them, and refreshes them in the
+   * background once they age. Refreshes are started from the request thread that observed the
+   * aging entry, so its authentication context is captured there and propagated to the refresh
+   * thread. A failed refresh keeps serving the cached view.
+   *
+   * <p>Refreshes are conditional on the ETag fiat returned for the cached view, if any, and keep
+   * the cached view without transferring it again when fiat answers that it is unchanged.
+   */
+  private class PermissionsCacheLoader implements CacheLoader<String, UserPermission.View> {
+    @Override
+    public UserPermission.View load(@Nonnull String username) throws Exception {
+      return retryHandler.retry(
+          "getUserPermission for " + username, () -> fetch(username, null, null));
+    }
+
+    private UserPermission.View reload(String username, UserPermission.View oldValue)
+        throws Exception {
+      TaggedView tagged = etags.get(username);
+      String etag = tagged != null && tagged.view == oldValue ? tagged.etag : null;
+      return retryHandler.retry(
+          "getUserPermission for " + username, () -> fetch(username, etag, oldValue));
+    }
+
+    /** Fetches the view, or returns the cached one if fiat answers that it still has the etag. */
+    private UserPermission.View fetch(
+        String username, String etag, UserPermission.View cached) throws Exception {
+      Response response;
+      try {
+        response = fiatService.getUserPermission(username, etag);
+      } catch (RetrofitError re) {
+        if (cached != null
+            && re.getKind() == RetrofitError.Kind.HTTP
+            && re.getResponse() != null
+            && re.getResponse().getStatus() == HttpStatus.NOT_MODIFIED.value()) {
+          return cached;
+        }
+        throw re;
+      }
+
+      UserPermission.View view =
+          (UserPermission.View)
+              viewConverter.fromBody(response.getBody(), UserPermission.View.class);
+      response.getHeaders().stream()
+          .filter(header -> HttpHeaders.ETAG.equalsIgnoreCase(header.getName()))
+          .findFirst()
+          .ifPresent(header -> etags.put(username, new TaggedView(view, header.getValue())));
+      return view;
+    }
+
+    @Override
+    public CompletableFuture<UserPermission.View> asyncReload(
+        @Nonnull String username, @Nonnull UserPermission.View oldValue, Executor executor) {
+      Callable<UserPermission.View> reload =
+          AuthenticatedRequest.propagate(() -> reload(username, oldValue));
+      return CompletableFuture.supplyAsync(
+          () -> {
+            try {
+              UserPermission.View view = reload.call();
+              refreshedPermissionCounter.increment();
+              return view;
+            } catch (Exception e) {
+              log.warn(
+                  "Unable to refresh permissions for user {}, continuing to serve cached value",
+                  username,
+                  e);
+              throw new CompletionException(e);
+            }
+          },
+          executor);
+    }
   }
 
   @Override
@@ -157,39 +355,86 @@ public class FiatPermissionEvaluator implements PermissionEvaluator {
     }
 
     String username = getUsername(SecurityContextHolder.getContext().getAuthentication());
+    CanCreateKey key = canCreateKey(username, resourceType, resource);
 
     try {
-      return AuthenticatedRequest.propagate(
-              () -> {
-                return retryHandler.retry(
-                    "determine whether " + username + " can create resource " + resource,
-                    () -> {
-                      try {
-                        fiatService.canCreate(username, resourceType, resource);
-                        return true;
-                      } catch (RetrofitError re) {
-                        boolean shouldRetry = true;
-                        if (re.getKind() == RetrofitError.Kind.HTTP) {
-                          switch (HttpStatus.valueOf(re.getResponse().getStatus())) {
-                            case NOT_FOUND:
-                              return false;
-                            case BAD_REQUEST:
-                              shouldRetry = false;
-                          }
-                        }
-                        IntegrationException ie = new IntegrationException(re);
-                        ie.setRetryable(shouldRetry);
-                        throw ie;
-                      }
-                    });
-              })
-          .call();
+      if (key == null) {
+        return loadCanCreate(username, resourceType, resource);
+      }
+
+      // concurrent checks of the same key wait for a single fiat call and share its result
+      return canCreateCache.get(
+          key,
+          k -> {
+            try {
+              return loadCanCreate(username, resourceType, resource);
+            } catch (RuntimeException re) {
+              throw re;
+            } catch (Exception e) {
+              throw new RuntimeException(e);
+            }
+          });
     } catch (Exception e) {
       log.info(e.toString());
       return false;
     }
   }
 
+  private boolean loadCanCreate(String username, String resourceType, Object resource)
+      throws Exception {
+    return AuthenticatedRequest.propagate(
+            () -> {
+              return retryHandler.retry(
+                  "determine whether " + username + " can create resource " + resource,
+                  () -> {
+                    try {
+                      fiatService.canCreate(username, resourceType, resource);
+                      return true;
+                    } catch (RetrofitError re) {
+                      boolean shouldRetry = true;
+                      if (re.getKind() == RetrofitError.Kind.HTTP) {
+                        switch (HttpStatus.valueOf(re.getResponse().getStatus())) {
+                          case NOT_FOUND:
+                            return false;
+                          case BAD_REQUEST:
+                            shouldRetry = false;
+                        }
+                      }
+                      IntegrationException ie = new IntegrationException(re);
+                      ie.setRetryable(shouldRetry);
+                      throw ie;
+                    }
+                  });
+            })
+        .call();
+  }
+
+  /**
+   * Identifies a canCreate check by the serialized resource, so equal resources share a cached
+   * result. Returns null, disabling caching for the check, if the resource can't be serialized.
+   */
+  private CanCreateKey canCreateKey(String username, String resourceType, Object resource) {
+    try {
+      return new CanCreateKey(username, resourceType, objectMapper.writeValueAsString(resource));
+    } catch (JsonProcessingException e) {
+      log.debug("Not caching canCreate check of unserializable resource {}", resource, e);
+      return null;
+    }
+  }
+
+  @Value
+  private static class TaggedView {
+    UserPermission.View view;
+    String etag;
+  }
+
+  @Value
+  private static class CanCreateKey {
+    String username;
+    String resourceType;
+    String resource;
+  }
+
   public boolean hasPermission(
       String username, Serializable resourceName, String resourceType, Object authorization) {
     if (!fiatStatus.isEnabled()) {
@@ -205,28 +450,14 @@ public class FiatPermissionEvaluator implements PermissionEvaluator {
       return false;
     }
 
-    ResourceType r = ResourceType.parse(resourceType);
-    Authorization a = null;
-
-    // Service accounts don't have read/write authorizations.
-    if (r != ResourceType.SERVICE_ACCOUNT) {
-      a = Authorization.valueOf(authorization.toString());
-    }
-
-    if (a == Authorization.CREATE) {
-      throw new IllegalArgumentException(
-          "This method should not be called for `CREATE`. Please call the other implementation");
-    }
-
-    if (r == ResourceType.APPLICATION && StringUtils.isNotEmpty(resourceName.toString())) {
-      resourceName = resourceName.toString();
-    }
+    ResourceType r = parseCached(resourceTypes, resourceType, ResourceType::parse);
+    Authorization a = parseAuthorization(r, authorization);
 
+    String name = resourceName.toString();
     UserPermission.View permission = getPermission(username);
-    boolean hasPermission = permissionContains(permission, resourceName.toString(), r, a);
+    boolean hasPermission = permissionContains(permission, name, r, a);
 
-    authorizationFailure.set(
-        hasPermission ? null : new AuthorizationFailure(a, r, resourceName.toString()));
+    authorizationFailure.set(hasPermission ? null : new AuthorizationFailure(a, r, name));
 
     if (permission != null && permission.isLegacyFallback() && hasPermission) {
       // log any access that was granted as part of a legacy fallback.
@@ -253,6 +484,195 @@ public class FiatPermissionEvaluator implements PermissionEvaluator {
     return hasPermission(getUsername(authentication), resourceName, resourceType, authorization);
   }
 
+  /**
+   * Checks the given resources of a type at once, resolving the user's permissions only once
+   * rather than once per resource as separate {@link #hasPermission} calls would.
+   *
+   * @return the set of positions in {@code resourceNames} of the resources the user is permitted
+   */
+  public BitSet getPermitted(
+      String username,
+      List<? extends Serializable> resourceNames,
+      String resourceType,
+      Object authorization) {
+    BitSet permitted = new BitSet(resourceNames == null ? 0 : resourceNames.size());
+    if (resourceNames == null || resourceNames.isEmpty()) {
+      return permitted;
+    }
+    if (!fiatStatus.isEnabled()) {
+      permitted.set(0, resourceNames.size());
+      return permitted;
+    }
+    if (resourceType == null || authorization == null) {
+      log.warn(
+          "Permission denied because at least one of the required arguments was null. "
+              + "resourceType={}, authorization={}",
+          resourceType,
+          authorization);
+      return permitted;
+    }
+
+    ResourceType r = parseCached(resourceTypes, resourceType, ResourceType::parse);
+    Authorization a = parseAuthorization(r, authorization);
+
+    UserPermission.View permission = getPermission(username);
+    for (int i = 0; i < resourceNames.size(); i++) {
+      Serializable resourceName = resourceNames.get(i);
+      if (resourceName != null && permissionContains(permission, resourceName.toString(), r, a)) {
+        permitted.set(i);
+      }
+    }
+
+    if (permission != null && permission.isLegacyFallback() && !permitted.isEmpty()) {
+      log.warn(
+          "Legacy fallback granted {} access (type: {}) to {} of {} resources",
+          a,
+          r,
+          permitted.cardinality(),
+          resourceNames.size());
+    }
+
+    return permitted;
+  }
+
+  /**
+   * @return the resources of the given names the authenticated user is permitted, in their order
+   * @see #getPermitted
+   */
+  public <T extends Serializable> List<T> filterPermitted(
+      Authentication authentication,
+      Collection<T> resourceNames,
+      String resourceType,
+      Object authorization) {
+    if (resourceNames == null) {
+      return Collections.emptyList();
+    }
+
+    List<T> names = new ArrayList<>(resourceNames);
+    if (!fiatStatus.isEnabled()) {
+      return names;
+    }
+
+    BitSet permitted =
+        getPermitted(getUsername(authentication), names, resourceType, authorization);
+    List<T> filtered = new ArrayList<>(permitted.cardinality());
+    permitted.stream().forEach(i -> filtered.add(names.get(i)));
+    return filtered;
+  }
+
+  /**
+   * Checks that the authenticated user is permitted all of the given resources, for use in method
+   * security expressions guarding batch operations, e.g.:
+   *
+   * <pre>
+   * &#64;PreAuthorize(
+   *     "&#64;fiatPermissionEvaluator.hasPermissions(authentication, #a, 'APPLICATION', 'READ')")
+   * </pre>
+   *
+   * On denial, the first resource not permitted is available from {@link
+   * #getAuthorizationFailure()}.
+   */
+  public boolean hasPermissions(
+      Authentication authentication,
+      Collection<? extends Serializable> resourceNames,
+      String resourceType,
+      Object authorization) {
+    if (!fiatStatus.isEnabled()) {
+      return true;
+    }
+    if (resourceNames == null) {
+      return false;
+    }
+
+    List<? extends Serializable> names = new ArrayList<>(resourceNames);
+    BitSet permitted =
+        getPermitted(getUsername(authentication), names, resourceType, authorization);
+    int denied = permitted.nextClearBit(0);
+    if (denied >= names.size()) {
+      authorizationFailure.set(null);
+      return true;
+    }
+
+    if (resourceType != null && authorization != null) {
+      ResourceType r = parseCached(resourceTypes, resourceType, ResourceType::parse);
+      authorizationFailure.set(
+          new AuthorizationFailure(
+              parseAuthorization(r, authorization), r, String.valueOf(names.get(denied))));
+    }
+    return false;
+  }
+
+  /**
+   * Loads the permissions of all given users that are not already cached, requesting them from fiat
+   * in batches rather than one user at a time. Users fiat has no permissions for are left uncached.
+   * Failures are logged and leave the users to be loaded individually by {@link #getPermission}.
+   */
+  public void prefetch(Collection<String> usernames) {
+    if (!fiatStatus.isEnabled() || usernames == null) {
+      return;
+    }
+
+    List<String> uncached =
+        usernames.stream()
+            .filter(StringUtils::isNotEmpty)
+            .distinct()
+            .filter(username -> permissionsCache.getIfPresent(username) == null)
+            .collect(Collectors.toList());
+
+    for (int from = 0; from < uncached.size(); from += prefetchBatchSize) {
+      List<String> batch =
+          uncached.subList(from, Math.min(from + prefetchBatchSize, uncached.size()));
+      try {
+        Map<String, UserPermission.View> views =
+            AuthenticatedRequest.propagate(
+                    () ->
+                        retryHandler.retry(
+                            "getUserPermissions for " + batch.size() + " users",
+                            () -> fiatService.getUserPermissions(batch)))
+                .call();
+        if (views != null) {
+          permissionsCache.putAll(views);
+        }
+        registry.counter(prefetchCounterId.withTag("success", true)).increment(batch.size());
+      } catch (Exception e) {
+        log.warn("Unable to prefetch permissions for {} users", batch.size(), e);
+        registry.counter(prefetchCounterId.withTag("success", false)).increment(batch.size());
+      }
+    }
+  }
+
+  /**
+   * Drops the cached permissions of the users fiat reports as changed since the last poll, or all
+   * of them if fiat can't tell which changed. The first poll only establishes where to start from.
+   */
+  @Scheduled(fixedDelayString = "${services.fiat.cache.changes-poll-interval-ms:5000}")
+  void pollPermissionChanges() {
+    if (!invalidateOnChanges || !fiatStatus.isEnabled()) {
+      return;
+    }
+
+    try {
+      Long since = changesSequence.get();
+      PermissionChanges changes = fiatService.getPermissionChanges(since);
+      if (since != null) {
+        if (changes.isReset()) {
+          permissionsCache.invalidateAll();
+        } else if (!changes.getUserIds().isEmpty()) {
+          // cached under the username as authenticated, which may differ in case
+          Set<String> changed =
+              changes.getUserIds().stream().map(String::toLowerCase).collect(Collectors.toSet());
+          permissionsCache
+              .asMap()
+              .keySet()
+              .removeIf(username -> changed.contains(username.toLowerCase()));
+        }
+      }
+      changesSequence.set(changes.getSequence());
+    } catch (Exception e) {
+      log.warn("Unable to poll fiat for permission changes, reason: {}", e.getMessage());
+    }
+  }
+
   public void invalidatePermission(String username) {
     permissionsCache.invalidate(username);
   }
@@ -263,66 +683,93 @@ public class FiatPermissionEvaluator implements PermissionEvaluator {
       return null;
     }
 
-    AtomicBoolean cacheHit = new AtomicBoolean(true);
-    AtomicBoolean successfulLookup = new AtomicBoolean(true);
-    AtomicBoolean legacyFallback = new AtomicBoolean(false);
-    AtomicReference<Throwable> exception = new AtomicReference<>();
+    // answers cache hits without allocating, as they are checked for every resource of a request.
+    // The map view records no stats, so that a miss is only recorded by the loading lookup below.
+    view = permissionsCache.asMap().get(username);
+    if (view != null) {
+      permissionsCacheStats.recordHits(1);
+      cachedPermissionCounter.increment();
+      return rebuildLegacyFallback(username, view);
+    }
 
+    PermissionLookup lookup = new PermissionLookup();
     try {
-      view =
-          permissionsCache.get(
-              username,
-              (loadUserName) -> {
-                cacheHit.set(false);
-                try {
-                  return AuthenticatedRequest.propagate(
-                          () -> {
-                            try {
-                              return retryHandler.retry(
-                                  "getUserPermission for " + loadUserName,
-                                  () -> fiatService.getUserPermission(loadUserName));
-                            } catch (Exception e) {
-                              if (!fiatStatus.isLegacyFallbackEnabled()) {
-                                throw e;
-                              }
-
-                              legacyFallback.set(true);
-                              successfulLookup.set(false);
-                              exception.set(e);
-
-                              // this fallback permission will be temporarily cached in the
-                              // permissions cache
-                              return buildFallbackView();
-                            }
-                          })
-                      .call();
-                } catch (RuntimeException re) {
-                  throw re;
-                } catch (Exception e) {
-                  throw new RuntimeException(e);
-                }
-              });
+      view = permissionsCache.get(username, lookup);
     } catch (Exception e) {
-      successfulLookup.set(false);
-      exception.set(e.getCause() != null ? e.getCause() : e);
+      lookup.successfulLookup = false;
+      lookup.exception = e.getCause() != null ? e.getCause() : e;
+    }
+
+    if (lookup.cacheHit && lookup.successfulLookup) {
+      cachedPermissionCounter.increment();
+      return rebuildLegacyFallback(username, view);
     }
 
     Id id =
         getPermissionCounterId
-            .withTag("cached", cacheHit.get())
-            .withTag("success", successfulLookup.get());
+            .withTag("cached", lookup.cacheHit)
+            .withTag("success", lookup.successfulLookup);
 
-    if (!successfulLookup.get()) {
+    if (!lookup.successfulLookup) {
       log.error(
           "Cannot get whole user permission for user {}, reason: {} (fallbackAccounts: {})",
           username,
-          exception.get().getMessage(),
+          lookup.exception.getMessage(),
           getAccountsForView(view));
-      id = id.withTag("legacyFallback", legacyFallback.get());
+      id = id.withTag("legacyFallback", lookup.legacyFallback);
     }
 
     registry.counter(id).increment();
 
+    return rebuildLegacyFallback(username, view);
+  }
+
+  /**
+   * Loads the permissions of a user missing from the cache, recording how the lookup went. The
+   * cache runs it on the calling thread, if at all.
+   */
+  private class PermissionLookup implements Function<String, UserPermission.View> {
+    private boolean cacheHit = true;
+    private boolean successfulLookup = true;
+    private boolean legacyFallback;
+    private Throwable exception;
+
+    @Override
+    public UserPermission.View apply(String loadUserName) {
+      cacheHit = false;
+      try {
+        return AuthenticatedRequest.propagate(
+                () -> {
+                  try {
+                    if (permissionsLoader != null) {
+                      return permissionsLoader.load(loadUserName);
+                    }
+                    return retryHandler.retry(
+                        "getUserPermission for " + loadUserName,
+                        () -> fiatService.getUserPermission(loadUserName));
+                  } catch (Exception e) {
+                    if (!fiatStatus.isLegacyFallbackEnabled()) {
+                      throw e;
+                    }
+
+                    legacyFallback = true;
+                    successfulLookup = false;
+                    exception = e;
+
+                    // this fallback permission will be temporarily cached in the permissions cache
+                    return buildFallbackView();
+                  }
+                })
+            .call();
+      } catch (RuntimeException re) {
+        throw re;
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+  private UserPermission.View rebuildLegacyFallback(String username, UserPermission.View view) {
     if (view != null && view.isLegacyFallback() && view.getAccounts().isEmpty()) {
       // rebuild a potentially stale (could have come from the cache) legacy fallback
       view = buildFallbackView();
@@ -336,6 +783,33 @@ public class FiatPermissionEvaluator implements PermissionEvaluator {
     return view;
   }
 
+  private static Authorization parseAuthorization(ResourceType r, Object authorization) {
+    // Service accounts don't have read/write authorizations.
+    if (r == ResourceType.SERVICE_ACCOUNT) {
+      return null;
+    }
+
+    Authorization a =
+        authorization instanceof Authorization
+            ? (Authorization) authorization
+            : parseCached(authorizations, authorization.toString(), Authorization::valueOf);
+    if (a == Authorization.CREATE) {
+      throw new IllegalArgumentException(
+          "This method should not be called for `CREATE`. Please call the other implementation");
+    }
+    return a;
+  }
+
+  private static <T> T parseCached(Map<String, T> cache, String value, Function<String, T> parser) {
+    T parsed = cache.get(value);
+    if (parsed == null) {
+      // only values that parse are cached, so the cache is bounded by the spellings in use
+      parsed = parser.apply(value);
+      cache.put(value, parsed);
+    }
+    return parsed;
+  }
+
   @SuppressWarnings("unused")
   @Deprecated
   public boolean storeWholePermission() {
@@ -381,25 +855,12 @@ public class FiatPermissionEvaluator implements PermissionEvaluator {
       return true;
     }
 
-    Function<Set<? extends Authorizable>, Boolean> containsAuth =
-        resources ->
-            resources.stream()
-                .anyMatch(
-                    view -> {
-                      Set<Authorization> authorizations =
-                          Optional.ofNullable(view.getAuthorizations())
-                              .orElse(Collections.emptySet());
-
-                      return view.getName().equalsIgnoreCase(resourceName)
-                          && authorizations.contains(authorization);
-                    });
-
     switch (resourceType) {
       case ACCOUNT:
-        boolean authorized = containsAuth.apply(permission.getAccounts());
+        boolean authorized = permission.isAuthorized(resourceType, resourceName, authorization);
 
         // Todo(jonsie): Debug transitory access denied issue, remove when not necessary
-        if (!authorized) {
+        if (!authorized && log.isDebugEnabled()) {
           Map<String, Set<Authorization>> accounts =
               permission.getAccounts().stream()
                   .collect(
@@ -415,20 +876,18 @@ public class FiatPermissionEvaluator implements PermissionEvaluator {
 
         return authorized;
       case APPLICATION:
-        boolean applicationHasPermissions =
-            permission.getApplications().stream()
-                .anyMatch(a -> a.getName().equalsIgnoreCase(resourceName));
-
-        if (!applicationHasPermissions && permission.isAllowAccessToUnknownApplications()) {
+        if (permission.isAllowAccessToUnknownApplications()
+            && !permission.containsResource(resourceType, resourceName)) {
           // allow access to any applications w/o explicit permissions
           return true;
         }
-        return permission.isLegacyFallback() || containsAuth.apply(permission.getApplications());
+        return permission.isLegacyFallback()
+            || permission.isAuthorized(resourceType, resourceName, authorization);
       case SERVICE_ACCOUNT:
-        return permission.getServiceAccounts().stream()
-            .anyMatch(view -> view.getName().equalsIgnoreCase(resourceName));
+        return permission.containsResource(resourceType, resourceName);
       case BUILD_SERVICE:
-        return permission.isLegacyFallback() || containsAuth.apply(permission.getBuildServices());
+        return permission.isLegacyFallback()
+            || permission.isAuthorized(resourceType, resourceName, authorization);
       default:
         return false;
     }
@@ -16,26 +16,55 @@
 
 package com.netflix.spinnaker.fiat.shared;
 
+import com.netflix.spinnaker.fiat.model.CompactUserPermissionView;
+import com.netflix.spinnaker.fiat.model.PermissionChanges;
 import com.netflix.spinnaker.fiat.model.UserPermission;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import retrofit.client.Response;
 import retrofit.http.Body;
 import retrofit.http.DELETE;
 import retrofit.http.GET;
+import retrofit.http.Header;
+import retrofit.http.Headers;
 import retrofit.http.POST;
 import retrofit.http.PUT;
 import retrofit.http.Path;
+import retrofit.http.Query;
 
 public interface FiatService {
 
+  /** Prefers the compact form of a user permission view, which older fiat servers ignore. */
+  String ACCEPT_VIEW =
+      "Accept: " + CompactUserPermissionView.MEDIA_TYPE + ", application/json;q=0.9";
+
   /**
    * @param userId The username of the user
    * @return The full UserPermission of the user.
    */
   @GET("/authorize/{userId}")
+  @Headers(ACCEPT_VIEW)
   UserPermission.View getUserPermission(@Path("userId") String userId);
 
+  /**
+   * @param userId The username of the user
+   * @param etag The ETag of the user's permissions as last returned by fiat, or null
+   * @return The full UserPermission of the user with its ETag, or 304 (as a RetrofitError) if it
+   *     still matches {@code etag}.
+   */
+  @GET("/authorize/{userId}")
+  @Headers(ACCEPT_VIEW)
+  Response getUserPermission(
+      @Path("userId") String userId, @Header("If-None-Match") String etag);
+
+  /**
+   * @param userIds The usernames of the users
+   * @return The full UserPermission of each user that has one, keyed by the requested username.
+   */
+  @POST("/authorize")
+  Map<String, UserPermission.View> getUserPermissions(@Body Collection<String> userIds);
+
   /**
    * @param userId The username of the user
    * @param resourceType The resource type in question (application, account, etc.)
@@ -64,6 +93,14 @@ public interface FiatService {
       @Path("resourceType") String resourceType,
       @Body Object resource);
 
+  /**
+   * @param since The sequence number of the last change already seen, or null to start following
+   *     changes from the current one.
+   * @return The users whose permissions changed after {@code since}.
+   */
+  @GET("/permissions/changes")
+  PermissionChanges getPermissionChanges(@Query("since") Long since);
+
   /**
    * Use to update all users.
    *
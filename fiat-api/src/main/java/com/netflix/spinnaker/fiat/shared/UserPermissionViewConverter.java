@@ -0,0 +1,64 @@
+/*
+ * Copyright 2020 Netflix, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.spinnaker.fiat.shared;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.netflix.spinnaker.fiat.model.CompactUserPermissionView;
+import com.netflix.spinnaker.fiat.model.UserPermission;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Type;
+import retrofit.converter.ConversionException;
+import retrofit.converter.Converter;
+import retrofit.converter.JacksonConverter;
+import retrofit.mime.TypedInput;
+import retrofit.mime.TypedOutput;
+
+/**
+ * Reads user permission views sent as {@link CompactUserPermissionView#MEDIA_TYPE}, and everything
+ * else as JSON. Fiat only sends the compact form when asked for it, so older fiat servers keep
+ * working with clients that ask.
+ */
+class UserPermissionViewConverter implements Converter {
+  private final ObjectMapper objectMapper;
+  private final JacksonConverter jacksonConverter;
+
+  UserPermissionViewConverter(ObjectMapper objectMapper) {
+    this.objectMapper = objectMapper;
+    this.jacksonConverter = new JacksonConverter(objectMapper);
+  }
+
+  @Override
+  public Object fromBody(TypedInput body, Type type) throws ConversionException {
+    if (!UserPermission.View.class.equals(type)
+        || body.mimeType() == null
+        || !body.mimeType().startsWith(CompactUserPermissionView.MEDIA_TYPE)) {
+      return jacksonConverter.fromBody(body, type);
+    }
+
+    try (InputStream in = body.in()) {
+      return objectMapper.readValue(in, CompactUserPermissionView.class).toView();
+    } catch (IOException e) {
+      throw new ConversionException(e);
+    }
+  }
+
+  @Override
+  public TypedOutput toBody(Object object) {
+    return jacksonConverter.toBody(object);
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2020 Netflix, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.spinnaker.fiat.shared;
+
+import com.github.benmanes.caffeine.cache.Weigher;
+import com.netflix.spinnaker.fiat.model.UserPermission;
+import com.netflix.spinnaker.fiat.model.resources.ServiceAccount;
+import java.util.Collection;
+import java.util.function.ToLongFunction;
+import javax.annotation.Nonnull;
+
+/**
+ * Weighs cached user permission views by a rough estimate of their heap size in bytes, so that a
+ * few users with access to many resources can't take up as much heap as thousands of others.
+ *
+ * <p>The estimate only needs to be proportionate: it counts the resource names and a fixed
+ * overhead per resource for its view object, its set entry, its authorizations and its entry in
+ * the view's lookup index.
+ */
+class UserPermissionViewWeigher implements Weigher<String, UserPermission.View> {
+  static final int VIEW_OVERHEAD = 512;
+  static final int RESOURCE_OVERHEAD = 200;
+
+  @Override
+  public int weigh(@Nonnull String username, @Nonnull UserPermission.View view) {
+    long weight = VIEW_OVERHEAD + chars(username);
+    weight += resources(view.getAccounts(), account -> chars(account.getName()));
+    weight += resources(view.getApplications(), application -> chars(application.getName()));
+    weight += resources(view.getBuildServices(), buildService -> chars(buildService.getName()));
+    weight += resources(view.getServiceAccounts(), UserPermissionViewWeigher::serviceAccount);
+    weight += resources(view.getRoles(), role -> chars(role.getName()));
+    return (int) Math.min(weight, Integer.MAX_VALUE);
+  }
+
+  private static long serviceAccount(ServiceAccount.View serviceAccount) {
+    long weight = chars(serviceAccount.getName());
+    if (serviceAccount.getMemberOf() != null) {
+      for (String role : serviceAccount.getMemberOf()) {
+        weight += RESOURCE_OVERHEAD / 2 + chars(role);
+      }
+    }
+    return weight;
+  }
+
+  private static <T> long resources(Collection<T> resources, ToLongFunction<T> nameWeight) {
+    if (resources == null) {
+      return 0;
+    }
+    long weight = 0;
+    for (T resource : resources) {
+      weight += RESOURCE_OVERHEAD + nameWeight.applyAsLong(resource);
+    }
+    return weight;
+  }
+
+  private static long chars(String name) {
+    // names are held twice, as given and lower-cased in the index, at up to two bytes per char
+    return name == null ? 0 : 4L * name.length();
+  }
+}
@@ -16,8 +16,12 @@
 
 package com.netflix.spinnaker.fiat.shared
 
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.netflix.spectator.api.DefaultRegistry
 import com.netflix.spinnaker.fiat.model.Authorization
+import com.netflix.spinnaker.fiat.model.PermissionChanges
 import com.netflix.spinnaker.fiat.model.UserPermission
+import com.netflix.spinnaker.fiat.model.resources.Account
 import com.netflix.spinnaker.fiat.model.resources.Application
 import com.netflix.spinnaker.fiat.model.resources.Permissions
 import com.netflix.spinnaker.fiat.model.resources.Resource
@@ -31,11 +35,17 @@ import org.springframework.security.core.context.SecurityContextHolder
 import org.springframework.security.web.authentication.preauth.PreAuthenticatedAuthenticationToken
 import retrofit.RetrofitError
 import retrofit.client.Response
+import retrofit.mime.TypedByteArray
 import spock.lang.Shared
 import spock.lang.Subject
 import spock.lang.Unroll
+import spock.util.concurrent.PollingConditions
 
 import javax.servlet.http.HttpServletResponse
+import java.util.concurrent.Callable
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
 
 class FiatPermissionEvaluatorSpec extends FiatSharedSpecification {
 
@@ -127,6 +137,70 @@ class FiatPermissionEvaluatorSpec extends FiatSharedSpecification {
     !evaluator.canCreate('APPLICATION', resourceCannotCreate)
   }
 
+  def "should share a single fiat call between identical canCreate checks"() {
+    given:
+    def configurationProperties = buildConfigurationProperties()
+    configurationProperties.cache.maxEntries = 10
+
+    FiatPermissionEvaluator evaluator = new FiatPermissionEvaluator(
+            registry,
+            fiatService,
+            configurationProperties,
+            fiatStatus,
+            FiatPermissionEvaluator.RetryHandler.NOOP
+    )
+
+    def inFlight = new CountDownLatch(1)
+    def executor = Executors.newFixedThreadPool(4)
+
+    when:
+    def futures = (1..4).collect {
+      executor.submit({ evaluator.canCreate('APPLICATION', [name: "app1"]) } as Callable<Boolean>)
+    }
+    inFlight.countDown()
+    def results = futures*.get(5, TimeUnit.SECONDS)
+    def otherResult = evaluator.canCreate('APPLICATION', [name: "app2"])
+
+    then:
+    1 * fiatService.canCreate("anonymous", 'APPLICATION', [name: "app1"]) >> {
+      inFlight.await(5, TimeUnit.SECONDS)
+      return null
+    }
+    1 * fiatService.canCreate("anonymous", 'APPLICATION', [name: "app2"]) >> {
+      throw RetrofitError.httpError("", new Response("", HttpServletResponse.SC_NOT_FOUND, "", [], null), null, null)
+    }
+    results == [true, true, true, true]
+    !otherResult
+
+    cleanup:
+    executor.shutdownNow()
+  }
+
+  def "should match resource names case-insensitively and re-index replaced resources"() {
+    setup:
+    UserPermission.View upv = new UserPermission.View()
+    upv.setAccounts([new Account.View().setName("Prod")
+                                       .setAuthorizations([Authorization.READ] as Set),
+                     new Account.View().setName("prod")
+                                       .setAuthorizations([Authorization.WRITE] as Set)] as Set)
+    upv.setServiceAccounts([new ServiceAccount.View().setName("SvcAcct")] as Set)
+    fiatService.getUserPermission("testUser") >> upv
+
+    expect:
+    evaluator.hasPermission(authentication, "PROD", 'ACCOUNT', 'READ')
+    evaluator.hasPermission(authentication, "pRoD", 'ACCOUNT', 'WRITE')
+    !evaluator.hasPermission(authentication, "prod", 'ACCOUNT', 'EXECUTE')
+    evaluator.hasPermission(authentication, "svcacct", 'SERVICE_ACCOUNT', 'WRITE')
+
+    when:
+    upv.setAccounts([new Account.View().setName("test")
+                                       .setAuthorizations([Authorization.READ] as Set)] as Set)
+
+    then:
+    !evaluator.hasPermission(authentication, "prod", 'ACCOUNT', 'READ')
+    evaluator.hasPermission(authentication, "TEST", 'ACCOUNT', 'READ')
+  }
+
   @Unroll
   def "should retry fiat requests"() {
     given:
@@ -256,6 +330,246 @@ class FiatPermissionEvaluatorSpec extends FiatSharedSpecification {
     true    || true
   }
 
+  def "should prefetch uncached permissions in batches"() {
+    given:
+    def configurationProperties = buildConfigurationProperties()
+    configurationProperties.cache.maxEntries = 10
+    configurationProperties.cache.expiresAfterWriteSeconds = 60
+    configurationProperties.cache.prefetchBatchSize = 2
+
+    FiatPermissionEvaluator evaluator = new FiatPermissionEvaluator(
+            registry,
+            fiatService,
+            configurationProperties,
+            fiatStatus,
+            FiatPermissionEvaluator.RetryHandler.NOOP
+    )
+
+    when:
+    evaluator.prefetch(["user1", "user2", "user3", "user1"])
+
+    then:
+    1 * fiatService.getUserPermissions(["user1", "user2"]) >> [
+        user1: new UserPermission.View().setName("user1"),
+        user2: new UserPermission.View().setName("user2")
+    ]
+    1 * fiatService.getUserPermissions(["user3"]) >> [:]
+    0 * fiatService._
+
+    when:
+    def user1 = evaluator.getPermission("user1")
+    evaluator.prefetch(["user1", "user2", "user3"])
+
+    then: "only users that are not cached are requested again"
+    user1.name == "user1"
+    1 * fiatService.getUserPermissions(["user3"]) >> [:]
+    0 * fiatService._
+  }
+
+  def "should drop cached permissions of users that fiat reports as changed"() {
+    given:
+    def configurationProperties = buildConfigurationProperties()
+    configurationProperties.cache.maxEntries = 10
+    configurationProperties.cache.expiresAfterWriteSeconds = 60
+    configurationProperties.cache.invalidateOnChanges = true
+
+    FiatPermissionEvaluator evaluator = new FiatPermissionEvaluator(
+            registry,
+            fiatService,
+            configurationProperties,
+            fiatStatus,
+            FiatPermissionEvaluator.RetryHandler.NOOP
+    )
+
+    when:
+    evaluator.getPermission("User1")
+    evaluator.getPermission("user2")
+    evaluator.pollPermissionChanges()
+    evaluator.pollPermissionChanges()
+    evaluator.getPermission("User1")
+    evaluator.getPermission("user2")
+
+    then:
+    1 * fiatService.getPermissionChanges(null) >> new PermissionChanges().setSequence(3)
+    1 * fiatService.getPermissionChanges(3) >> new PermissionChanges().setSequence(5).setUserIds(["user1"] as Set)
+    2 * fiatService.getUserPermission("User1") >> new UserPermission.View().setName("user1")
+    1 * fiatService.getUserPermission("user2") >> new UserPermission.View().setName("user2")
+
+    when:
+    evaluator.pollPermissionChanges()
+    evaluator.getPermission("User1")
+    evaluator.getPermission("user2")
+
+    then:
+    1 * fiatService.getPermissionChanges(5) >> new PermissionChanges().setSequence(6).setReset(true)
+    1 * fiatService.getUserPermission("User1") >> new UserPermission.View().setName("user1")
+    1 * fiatService.getUserPermission("user2") >> new UserPermission.View().setName("user2")
+  }
+
+  def "should serve cached permissions while refreshing them in the background"() {
+    given:
+    def configurationProperties = buildConfigurationProperties()
+    configurationProperties.cache.maxEntries = 10
+    configurationProperties.cache.expiresAfterWriteSeconds = 60
+    configurationProperties.cache.refreshAfterWriteSeconds = 1
+
+    FiatPermissionEvaluator evaluator = new FiatPermissionEvaluator(
+            registry,
+            fiatService,
+            configurationProperties,
+            fiatStatus,
+            FiatPermissionEvaluator.RetryHandler.NOOP
+    )
+
+    def conditions = new PollingConditions(timeout: 5)
+    fiatService.getUserPermission("testUser", null) >>
+        response(new UserPermission.View().setName("testUser").setAdmin(false), null) >>
+        { throw new IllegalStateException("fiat is unavailable") } >>
+        response(new UserPermission.View().setName("testUser").setAdmin(true), null)
+
+    expect:
+    !evaluator.getPermission("testUser").admin
+
+    when:
+    Thread.sleep(1100)
+
+    then: "the aging entry is served while a (failing) refresh happens in the background"
+    !evaluator.getPermission("testUser").admin
+
+    and: "a later refresh replaces it"
+    conditions.eventually {
+      assert evaluator.getPermission("testUser").admin
+    }
+  }
+
+  def "should keep the cached view when fiat reports it unchanged on refresh"() {
+    given:
+    def configurationProperties = buildConfigurationProperties()
+    configurationProperties.cache.maxEntries = 10
+    configurationProperties.cache.expiresAfterWriteSeconds = 60
+    configurationProperties.cache.refreshAfterWriteSeconds = 1
+
+    FiatPermissionEvaluator evaluator = new FiatPermissionEvaluator(
+            registry,
+            fiatService,
+            configurationProperties,
+            fiatStatus,
+            FiatPermissionEvaluator.RetryHandler.NOOP
+    )
+
+    def conditions = new PollingConditions(timeout: 5)
+    def notModified = RetrofitError.httpError(
+        "", new Response("", HttpServletResponse.SC_NOT_MODIFIED, "", [], null), null, null)
+    def refreshes = 0
+
+    fiatService.getUserPermission("testUser", null) >>
+        response(new UserPermission.View().setName("testUser"), '"v1"')
+    fiatService.getUserPermission("testUser", '"v1"') >> {
+      refreshes++
+      throw notModified
+    }
+
+    when:
+    def cached = evaluator.getPermission("testUser")
+    Thread.sleep(1100)
+    evaluator.getPermission("testUser")
+
+    then: "the first refresh already sends the ETag of the loaded view"
+    conditions.eventually {
+      assert refreshes == 1
+    }
+    0 * fiatService.getUserPermission("testUser")
+
+    and: "keeps the same view on a 304"
+    evaluator.getPermission("testUser").is(cached)
+  }
+
+  def "should count cache hits and record only denied checks as authorization failures"() {
+    given:
+    def registry = new DefaultRegistry()
+    def configurationProperties = buildConfigurationProperties()
+    configurationProperties.cache.maxEntries = 10
+    configurationProperties.cache.expiresAfterWriteSeconds = 60
+
+    FiatPermissionEvaluator evaluator = new FiatPermissionEvaluator(
+            registry,
+            fiatService,
+            configurationProperties,
+            fiatStatus,
+            FiatPermissionEvaluator.RetryHandler.NOOP
+    )
+
+    def cachedCounter = registry.counter(
+        registry.createId("fiat.getPermission").withTags("cached", "true", "success", "true"))
+    def cacheHits = registry.counter("fiat.permissionsCache.hits")
+    def cacheMisses = registry.counter("fiat.permissionsCache.misses")
+
+    when:
+    def denied = evaluator.hasPermission("testUser", "other", "applications", Authorization.READ)
+    def failure = FiatPermissionEvaluator.getAuthorizationFailure()
+
+    then:
+    1 * fiatService.getUserPermission("testUser") >> new UserPermission.View()
+        .setApplications([new Application.View().setName("abc").setAuthorizations([Authorization.READ] as Set)] as Set)
+    !denied
+    failure.get().resourceType == ResourceType.APPLICATION
+    failure.get().resourceName == "other"
+    failure.get().authorization == Authorization.READ
+    cachedCounter.count() == 0
+    cacheMisses.count() == 1
+    cacheHits.count() == 0
+
+    when:
+    def granted = evaluator.hasPermission("testUser", "ABC", "APPLICATION", "READ")
+
+    then:
+    0 * fiatService._
+    granted
+    !FiatPermissionEvaluator.getAuthorizationFailure().isPresent()
+    cachedCounter.count() == 1
+    cacheMisses.count() == 1
+    cacheHits.count() == 1
+  }
+
+  def "should check many resources against a single lookup of the user's permissions"() {
+    given:
+    def authentication = new PreAuthenticatedAuthenticationToken("testUser", null, [])
+    def view = new UserPermission.View().setApplications([
+        new Application.View().setName("app1").setAuthorizations([Authorization.READ] as Set),
+        new Application.View().setName("app3").setAuthorizations([Authorization.READ, Authorization.WRITE] as Set)
+    ] as Set)
+
+    when:
+    def permitted = evaluator.getPermitted("testUser", ["app1", "app2", "APP3", null], "APPLICATION", "READ")
+
+    then:
+    1 * fiatService.getUserPermission("testUser") >> view
+    permitted == BitSet.valueOf([0b101L] as long[])
+
+    when:
+    def filtered = evaluator.filterPermitted(authentication, ["app3", "app2", "app1"], "applications", Authorization.WRITE)
+
+    then:
+    1 * fiatService.getUserPermission("testUser") >> view
+    filtered == ["app3"]
+
+    when:
+    def all = evaluator.hasPermissions(authentication, ["app1", "app3"], "APPLICATION", "READ")
+    def notAll = evaluator.hasPermissions(authentication, ["app1", "app2", "app3"], "APPLICATION", "READ")
+
+    then:
+    2 * fiatService.getUserPermission("testUser") >> view
+    all
+    !notAll
+    FiatPermissionEvaluator.getAuthorizationFailure().get().resourceName == "app2"
+  }
+
+  private static Response response(UserPermission.View view, String etag) {
+    def headers = etag == null ? [] : [new retrofit.client.Header("ETag", etag)]
+    def body = new TypedByteArray("application/json", new ObjectMapper().writeValueAsBytes(view))
+    return new Response("", HttpServletResponse.SC_OK, "", headers, body)
+  }
+
   private static FiatClientConfigurationProperties buildConfigurationProperties() {
     FiatClientConfigurationProperties configurationProperties = new FiatClientConfigurationProperties()
     configurationProperties.enabled = true
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2020 Netflix, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.spinnaker.fiat.shared
+
+import com.netflix.spinnaker.fiat.model.Authorization
+import com.netflix.spinnaker.fiat.model.UserPermission
+import com.netflix.spinnaker.fiat.model.resources.Application
+import com.netflix.spinnaker.fiat.model.resources.ServiceAccount
+import spock.lang.Specification
+import spock.lang.Subject
+
+class UserPermissionViewWeigherSpec extends Specification {
+
+  @Subject
+  UserPermissionViewWeigher weigher = new UserPermissionViewWeigher()
+
+  def "should weigh views by the resources they contain"() {
+    given:
+    def empty = new UserPermission.View().setName("user")
+    def broad = new UserPermission.View()
+        .setName("user")
+        .setApplications((1..1000).collect {
+          new Application.View().setName("app" + it).setAuthorizations([Authorization.READ] as Set)
+        } as Set)
+        .setServiceAccounts([new ServiceAccount.View().setName("sa").setMemberOf(["role1", "role2"])] as Set)
+
+    expect:
+    weigher.weigh("user", empty) == UserPermissionViewWeigher.VIEW_OVERHEAD + 16
+    weigher.weigh("user", broad) > 1000 * UserPermissionViewWeigher.RESOURCE_OVERHEAD
+    weigher.weigh("user", broad) > 100 * weigher.weigh("user", empty)
+  }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2020 Netflix, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.spinnaker.fiat.model;
+
+import com.netflix.spinnaker.fiat.model.resources.Account;
+import com.netflix.spinnaker.fiat.model.resources.Application;
+import com.netflix.spinnaker.fiat.model.resources.Authorizable;
+import com.netflix.spinnaker.fiat.model.resources.BuildService;
+import com.netflix.spinnaker.fiat.model.resources.Role;
+import com.netflix.spinnaker.fiat.model.resources.ServiceAccount;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiFunction;
+import lombok.Data;
+
+/**
+ * A columnar form of {@link UserPermission.View}, sent between fiat and its clients in place of
+ * the view when they ask for {@link #MEDIA_TYPE}. Resource names are sent as plain lists, and
+ * each resource's authorizations as an index into the few distinct authorization sets of the view
+ * rather than repeated per resource.
+ */
+@Data
+public class CompactUserPermissionView {
+  public static final String MEDIA_TYPE = "application/vnd.spinnaker.fiat.compact";
+
+  private String name;
+  private boolean admin;
+  private boolean legacyFallback;
+  private boolean allowAccessToUnknownApplications;
+
+  /** The distinct authorization sets of the view, referenced by index from the columns. */
+  private List<Set<Authorization>> authorizationSets = new ArrayList<>();
+
+  private Column accounts;
+  private Column applications;
+  private Column buildServices;
+  private Set<ServiceAccount.View> serviceAccounts;
+  private Set<Role.View> roles;
+
+  /** Resources by name, with the index of their authorization set (-1 for none) alongside. */
+  @Data
+  public static class Column {
+    private List<String> names = new ArrayList<>();
+    private List<Integer> authorizations = new ArrayList<>();
+  }
+
+  public static CompactUserPermissionView of(UserPermission.View view) {
+    CompactUserPermissionView compact =
+        new CompactUserPermissionView()
+            .setName(view.getName())
+            .setAdmin(view.isAdmin())
+            .setLegacyFallback(view.isLegacyFallback())
+            .setAllowAccessToUnknownApplications(view.isAllowAccessToUnknownApplications())
+            .setServiceAccounts(view.getServiceAccounts())
+            .setRoles(view.getRoles());
+
+    Map<Set<Authorization>, Integer> authorizationSetIndex = new HashMap<>();
+    compact.accounts = compact.toColumn(view.getAccounts(), authorizationSetIndex);
+    compact.applications = compact.toColumn(view.getApplications(), authorizationSetIndex);
+    compact.buildServices = compact.toColumn(view.getBuildServices(), authorizationSetIndex);
+    return compact;
+  }
+
+  public UserPermission.View toView() {
+    return new UserPermission.View()
+        .setName(name)
+        .setAdmin(admin)
+        .setLegacyFallback(legacyFallback)
+        .setAllowAccessToUnknownApplications(allowAccessToUnknownApplications)
+        .setAccounts(
+            fromColumn(
+                accounts,
+                (resourceName, authorizations) ->
+                    new Account.View().setName(resourceName).setAuthorizations(authorizations)))
+        .setApplications(
+            fromColumn(
+                applications,
+                (resourceName, authorizations) ->
+                    new Application.View().setName(resourceName).setAuthorizations(authorizations)))
+        .setBuildServices(
+            fromColumn(
+                buildServices,
+                (resourceName, authorizations) ->
+                    new BuildService.View()
+                        .setName(resourceName)
+                        .setAuthorizations(authorizations)))
+        .setServiceAccounts(serviceAccounts)
+        .setRoles(roles);
+  }
+
+  private Column toColumn(
+      Set<? extends Authorizable> resources, Map<Set<Authorization>, Integer> setIndex) {
+    if (resources == null) {
+      return null;
+    }
+
+    Column column = new Column();
+    for (Authorizable resource : resources) {
+      column.names.add(resource.getName());
+      if (resource.getAuthorizations() == null) {
+        column.authorizations.add(-1);
+      } else {
+        column.authorizations.add(
+            setIndex.computeIfAbsent(
+                resource.getAuthorizations(),
+                authorizations -> {
+                  authorizationSets.add(authorizations);
+                  return authorizationSets.size() - 1;
+                }));
+      }
+    }
+    return column;
+  }
+
+  private <T> Set<T> fromColumn(
+      Column column, BiFunction<String, Set<Authorization>, T> toResourceView) {
+    if (column == null) {
+      return null;
+    }
+
+    Set<T> views = new LinkedHashSet<>(column.names.size());
+    for (int i = 0; i < column.names.size(); i++) {
+      int setIndex = column.authorizations.get(i);
+      views.add(
+          toResourceView.apply(
+              column.names.get(i), setIndex < 0 ? null : authorizationSets.get(setIndex)));
+    }
+    return views;
+  }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2020 Netflix, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.spinnaker.fiat.model;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+import lombok.Data;
+
+/**
+ * The users whose permissions were written or removed after a given point in the sequence of
+ * permission changes. Clients pass the returned sequence back to get the changes that follow it.
+ */
+@Data
+public class PermissionChanges {
+  /** The sequence number of the latest change included. */
+  private long sequence;
+
+  /**
+   * True if the changes can't be listed by user, e.g. because the unrestricted user changed or the
+   * requested changes are no longer retained. Any user's permissions may then have changed.
+   */
+  private boolean reset = false;
+
+  private Set<String> userIds = new LinkedHashSet<>();
+}
@@ -19,21 +19,32 @@ package com.netflix.spinnaker.fiat.model;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.netflix.spinnaker.fiat.model.resources.Account;
 import com.netflix.spinnaker.fiat.model.resources.Application;
+import com.netflix.spinnaker.fiat.model.resources.Authorizable;
 import com.netflix.spinnaker.fiat.model.resources.BuildService;
+import com.netflix.spinnaker.fiat.model.resources.InternedRoles;
 import com.netflix.spinnaker.fiat.model.resources.Resource;
+import com.netflix.spinnaker.fiat.model.resources.ResourceType;
 import com.netflix.spinnaker.fiat.model.resources.Role;
 import com.netflix.spinnaker.fiat.model.resources.ServiceAccount;
 import com.netflix.spinnaker.fiat.model.resources.Viewable;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 import java.util.function.Function;
 import java.util.stream.Collectors;
+import lombok.AccessLevel;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
+import lombok.Getter;
 import lombok.NoArgsConstructor;
+import lombok.Setter;
 
 @Data
 public class UserPermission {
@@ -116,13 +127,25 @@ public class UserPermission {
     boolean legacyFallback = false;
     boolean allowAccessToUnknownApplications = false;
 
+    /**
+     * Lower-cased resource name to granted authorizations, per resource type. Built lazily on first
+     * lookup and dropped whenever one of the indexed sets is replaced.
+     */
+    @JsonIgnore
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private transient volatile Map<ResourceType, Map<String, Set<Authorization>>> index;
+
     public View(UserPermission permission) {
       this.name = permission.id;
 
+      // interned once for all resources, rather than on every check of the roles
+      Set<Role> userRoles =
+          permission.getRoles() == null ? null : InternedRoles.of(permission.getRoles());
       Function<Set<? extends Viewable>, Set<? extends Viewable.BaseView>> toViews =
           sourceSet ->
               sourceSet.stream()
-                  .map(viewable -> viewable.getView(permission.getRoles(), permission.isAdmin()))
+                  .map(viewable -> viewable.getView(userRoles, permission.isAdmin()))
                   .collect(Collectors.toSet());
 
       this.accounts = (Set<Account.View>) toViews.apply(permission.getAccounts());
@@ -133,5 +156,92 @@ public class UserPermission {
       this.buildServices = (Set<BuildService.View>) toViews.apply(permission.getBuildServices());
       this.admin = permission.isAdmin();
     }
+
+    public View setAccounts(Set<Account.View> accounts) {
+      this.accounts = accounts;
+      this.index = null;
+      return this;
+    }
+
+    public View setApplications(Set<Application.View> applications) {
+      this.applications = applications;
+      this.index = null;
+      return this;
+    }
+
+    public View setServiceAccounts(Set<ServiceAccount.View> serviceAccounts) {
+      this.serviceAccounts = serviceAccounts;
+      this.index = null;
+      return this;
+    }
+
+    public View setBuildServices(Set<BuildService.View> buildServices) {
+      this.buildServices = buildServices;
+      this.index = null;
+      return this;
+    }
+
+    /**
+     * @return true if this view contains a resource of the given type and (case-insensitive) name
+     */
+    public boolean containsResource(ResourceType resourceType, String resourceName) {
+      return authorizationsFor(resourceType, resourceName) != null;
+    }
+
+    /**
+     * @return true if this view grants {@code authorization} on the resource of the given type and
+     *     (case-insensitive) name
+     */
+    public boolean isAuthorized(
+        ResourceType resourceType, String resourceName, Authorization authorization) {
+      Set<Authorization> authorizations = authorizationsFor(resourceType, resourceName);
+      return authorizations != null && authorizations.contains(authorization);
+    }
+
+    private Set<Authorization> authorizationsFor(ResourceType resourceType, String resourceName) {
+      if (resourceType == null || resourceName == null) {
+        return null;
+      }
+      Map<String, Set<Authorization>> byName = getIndex().get(resourceType);
+      return byName == null ? null : byName.get(resourceName.toLowerCase(Locale.ROOT));
+    }
+
+    private Map<ResourceType, Map<String, Set<Authorization>>> getIndex() {
+      Map<ResourceType, Map<String, Set<Authorization>>> index = this.index;
+      if (index == null) {
+        index = new EnumMap<>(ResourceType.class);
+        index.put(ResourceType.ACCOUNT, indexAuthorizables(accounts));
+        index.put(ResourceType.APPLICATION, indexAuthorizables(applications));
+        index.put(ResourceType.BUILD_SERVICE, indexAuthorizables(buildServices));
+
+        Map<String, Set<Authorization>> byName = new HashMap<>();
+        if (serviceAccounts != null) {
+          serviceAccounts.forEach(
+              sa -> byName.put(sa.getName().toLowerCase(Locale.ROOT), Collections.emptySet()));
+        }
+        index.put(ResourceType.SERVICE_ACCOUNT, byName);
+
+        this.index = index;
+      }
+      return index;
+    }
+
+    private static Map<String, Set<Authorization>> indexAuthorizables(
+        Set<? extends Authorizable> resources) {
+      Map<String, Set<Authorization>> byName = new HashMap<>();
+      if (resources == null) {
+        return byName;
+      }
+      for (Authorizable resource : resources) {
+        Set<Authorization> authorizations =
+            byName.computeIfAbsent(
+                resource.getName().toLowerCase(Locale.ROOT),
+                name -> EnumSet.noneOf(Authorization.class));
+        if (resource.getAuthorizations() != null) {
+          authorizations.addAll(resource.getAuthorizations());
+        }
+      }
+      return byName;
+    }
   }
 }
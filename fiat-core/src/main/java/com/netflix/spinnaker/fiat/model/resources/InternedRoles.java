@@ -0,0 +1,139 @@
+/*
+ * Copyright 2020 Netflix, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.spinnaker.fiat.model.resources;
+
+import java.util.AbstractSet;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.Nonnull;
+
+/**
+ * A user's roles along with the set of their interned ids, so that the roles are only looked up
+ * once however many resources they are checked against.
+ *
+ * <p>The role names granted by {@link Permissions} are interned to dense ints for the lifetime of
+ * the process, and each keeps the ids of the roles granted each authorization, which makes checking
+ * roles against them a few word-wide bit operations. Only those names are interned: a user's role
+ * that no permissions grant can't match any of them, so it is skipped rather than interned.
+ */
+public final class InternedRoles extends AbstractSet<Role> {
+
+  private static final Map<String, Integer> ids = new ConcurrentHashMap<>();
+
+  /**
+   * The number of names interned, which is also the next id. It is only raised once the name
+   * given the id is in {@link #ids}, so a lookup that misses a name always sees the count raised
+   * again once the name is interned.
+   */
+  private static volatile int published;
+
+  private final Set<Role> roles;
+  private volatile Lookup lookup;
+
+  private InternedRoles(Set<Role> roles) {
+    this.roles = Collections.unmodifiableSet(roles);
+    this.lookup = lookUpIds();
+  }
+
+  /**
+   * @return the given roles, interned unless they already are. The roles must not be changed
+   *     while the returned set is in use.
+   */
+  public static InternedRoles of(@Nonnull Set<Role> roles) {
+    return roles instanceof InternedRoles ? (InternedRoles) roles : new InternedRoles(roles);
+  }
+
+  /** @return the ids of the given (lower-case) role names, assigning the next ones to new names */
+  static BitSet intern(Collection<String> roleNames) {
+    BitSet roleIds = new BitSet();
+    for (String roleName : roleNames) {
+      if (roleName != null) {
+        Integer id = ids.get(roleName);
+        roleIds.set(id != null ? id : assignId(roleName));
+      }
+    }
+    return roleIds;
+  }
+
+  private static synchronized int assignId(String roleName) {
+    Integer id = ids.get(roleName);
+    if (id == null) {
+      id = published;
+      ids.put(roleName, id);
+      published = id + 1;
+    }
+    return id;
+  }
+
+  private Lookup lookUpIds() {
+    // read before the ids, so that any name missed is interned after this count
+    int interned = published;
+    boolean skipped = false;
+    BitSet roleIds = new BitSet();
+    for (Role role : roles) {
+      Integer id = role.getName() == null ? null : ids.get(role.getName());
+      if (id != null) {
+        roleIds.set(id);
+      } else {
+        skipped = true;
+      }
+    }
+    return new Lookup(roleIds, skipped ? interned : -1);
+  }
+
+  BitSet getRoleIds() {
+    // a skipped role may have been granted by permissions created since
+    Lookup current = lookup;
+    if (current.skippedAt >= 0 && current.skippedAt != published) {
+      current = lookUpIds();
+      lookup = current;
+    }
+    return current.roleIds;
+  }
+
+  private static class Lookup {
+    private final BitSet roleIds;
+
+    /** The number of names interned before a role was skipped, or -1 if none was. */
+    private final int skippedAt;
+
+    Lookup(BitSet roleIds, int skippedAt) {
+      this.roleIds = roleIds;
+      this.skippedAt = skippedAt;
+    }
+  }
+
+  @Override
+  public boolean contains(Object o) {
+    return roles.contains(o);
+  }
+
+  @Override
+  public Iterator<Role> iterator() {
+    return roles.iterator();
+  }
+
+  @Override
+  public int size() {
+    return roles.size();
+  }
+}
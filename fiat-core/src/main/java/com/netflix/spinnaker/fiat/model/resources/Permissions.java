@@ -26,23 +26,30 @@ import java.util.*;
 import java.util.stream.Collectors;
 import lombok.EqualsAndHashCode;
 import lombok.ToString;
-import lombok.val;
 
 /**
  * Representation of authorization configuration for a resource. This object is immutable, which
  * makes it challenging when working with Jackson's {@code ObjectMapper} and Spring's
  * {@code @ConfigurationProperties}. The {@link Builder} is a helper class for the latter use case.
  */
-@ToString
-@EqualsAndHashCode
+@ToString(of = "permissions")
+@EqualsAndHashCode(of = "permissions")
 public class Permissions {
 
   public static final Permissions EMPTY = Builder.fromMap(Collections.emptyMap());
 
   private final Map<Authorization, List<String>> permissions;
 
+  /** The interned ids of the roles granted each authorization, see {@link InternedRoles}. */
+  private final Map<Authorization, BitSet> roleIds = new EnumMap<>(Authorization.class);
+
+  private final boolean restricted;
+
   private Permissions(Map<Authorization, List<String>> p) {
     this.permissions = Collections.unmodifiableMap(p);
+    this.permissions.forEach(
+        (authorization, roles) -> roleIds.put(authorization, InternedRoles.intern(roles)));
+    this.restricted = this.permissions.values().stream().anyMatch(groups -> !groups.isEmpty());
   }
 
   /**
@@ -76,20 +83,41 @@ public class Permissions {
   }
 
   public boolean isRestricted() {
-    return this.permissions.values().stream().anyMatch(groups -> !groups.isEmpty());
+    return restricted;
   }
 
+  /**
+   * Pass the roles as {@link InternedRoles} when checking them against many resources, so that they
+   * are only looked up once.
+   */
   public boolean isAuthorized(Set<Role> userRoles) {
-    return !getAuthorizations(userRoles).isEmpty();
+    if (!restricted) {
+      return true;
+    }
+    if (!(userRoles instanceof InternedRoles)) {
+      return !getAuthorizations(userRoles).isEmpty();
+    }
+
+    BitSet userRoleIds = ((InternedRoles) userRoles).getRoleIds();
+    return roleIds.values().stream().anyMatch(ids -> ids.intersects(userRoleIds));
   }
 
+  /**
+   * Pass the roles as {@link InternedRoles} when checking them against many resources, so that they
+   * are only looked up once.
+   */
   public Set<Authorization> getAuthorizations(Set<Role> userRoles) {
-    val r = userRoles.stream().map(Role::getName).collect(Collectors.toList());
-    return getAuthorizations(r);
+    if (!restricted) {
+      return Authorization.ALL;
+    }
+    if (!(userRoles instanceof InternedRoles)) {
+      return getAuthorizations(userRoles.stream().map(Role::getName).collect(Collectors.toList()));
+    }
+    return getAuthorizations(((InternedRoles) userRoles).getRoleIds());
   }
 
   public Set<Authorization> getAuthorizations(List<String> userRoles) {
-    if (!isRestricted()) {
+    if (!restricted) {
       return Authorization.ALL;
     }
 
@@ -99,6 +127,17 @@ public class Permissions {
         .collect(Collectors.toSet());
   }
 
+  private Set<Authorization> getAuthorizations(BitSet userRoleIds) {
+    Set<Authorization> authorizations = EnumSet.noneOf(Authorization.class);
+    roleIds.forEach(
+        (authorization, ids) -> {
+          if (ids.intersects(userRoleIds)) {
+            authorizations.add(authorization);
+          }
+        });
+    return authorizations;
+  }
+
   public List<String> get(Authorization a) {
     return permissions.getOrDefault(a, new ArrayList<>());
   }
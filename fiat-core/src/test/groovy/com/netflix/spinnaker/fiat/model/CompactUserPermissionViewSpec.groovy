@@ -0,0 +1,85 @@
+/*
+ * Copyright 2020 Netflix, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.spinnaker.fiat.model
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.netflix.spinnaker.fiat.model.resources.Account
+import com.netflix.spinnaker.fiat.model.resources.Application
+import com.netflix.spinnaker.fiat.model.resources.BuildService
+import com.netflix.spinnaker.fiat.model.resources.Permissions
+import com.netflix.spinnaker.fiat.model.resources.Role
+import com.netflix.spinnaker.fiat.model.resources.ServiceAccount
+import spock.lang.Specification
+
+class CompactUserPermissionViewSpec extends Specification {
+
+  ObjectMapper objectMapper = new ObjectMapper()
+
+  def "should round trip a view, sharing equal authorization sets"() {
+    given:
+    def readable = Permissions.factory([(Authorization.READ): ["role1"]])
+    def writable = Permissions.factory([(Authorization.READ): ["role1"], (Authorization.WRITE): ["role1"]])
+    def view = new UserPermission()
+        .setId("user")
+        .setRoles([new Role("role1")] as Set)
+        .setAccounts([new Account().setName("account1").setPermissions(writable)] as Set)
+        .setApplications([
+            new Application().setName("app1").setPermissions(readable),
+            new Application().setName("app2").setPermissions(readable),
+            new Application().setName("app3").setPermissions(writable)
+        ] as Set)
+        .setBuildServices([new BuildService().setName("jenkins")] as Set)
+        .setServiceAccounts([new ServiceAccount().setName("svc").setMemberOf(["role1"])] as Set)
+        .view
+        .setAllowAccessToUnknownApplications(true)
+
+    when:
+    def compact = CompactUserPermissionView.of(view)
+
+    then:
+    compact.authorizationSets as Set ==
+        (view.accounts + view.applications + view.buildServices)*.authorizations as Set
+    compact.authorizationSets.size() < 5
+    compact.applications.names.size() == 3
+
+    when:
+    def json = objectMapper.writeValueAsString(compact)
+    def result = objectMapper.readValue(json, CompactUserPermissionView).toView()
+
+    then:
+    result == view
+    result.applications.find { it.name == "app1" }.authorizations.is(
+        result.applications.find { it.name == "app2" }.authorizations)
+  }
+
+  def "should keep missing resource types and authorizations missing"() {
+    given:
+    def view = new UserPermission.View()
+        .setName("user")
+        .setApplications([new Application.View().setName("app")] as Set)
+
+    when:
+    def result = objectMapper.readValue(
+        objectMapper.writeValueAsString(CompactUserPermissionView.of(view)),
+        CompactUserPermissionView).toView()
+
+    then:
+    result == view
+    result.accounts == null
+    result.applications*.authorizations == [null]
+  }
+}
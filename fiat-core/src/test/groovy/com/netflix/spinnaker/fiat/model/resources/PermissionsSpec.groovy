@@ -27,6 +27,10 @@ import org.springframework.context.annotation.Configuration
 import org.springframework.test.context.ContextConfiguration
 import spock.lang.Specification
 
+import java.util.concurrent.Callable
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+
 @ContextConfiguration(classes = TestConfig, initializers = YamlFileApplicationContextInitializer)
 class PermissionsSpec extends Specification {
 
@@ -177,6 +181,78 @@ class PermissionsSpec extends Specification {
     p.getAuthorizations(["bar", "foo"]) == [R] as Set
   }
 
+  def "test getAuthorizations and isAuthorized of roles"() {
+    setup:
+    Permissions p = Permissions.factory([(R): ["foo", "bar"], (W): ["bar"], (E): ["baz"]])
+    Set<Role> roles = [new Role("BAR"), new Role("other")] as Set
+    InternedRoles interned = InternedRoles.of(roles)
+
+    expect:
+    p.getAuthorizations(roles) == [R, W] as Set
+    p.getAuthorizations(interned) == [R, W] as Set
+    p.getAuthorizations([new Role("baz")] as Set) == [E] as Set
+    p.getAuthorizations([new Role("unknown")] as Set).isEmpty()
+    p.isAuthorized(interned)
+    !p.isAuthorized([new Role("unknown")] as Set)
+    Permissions.EMPTY.isAuthorized([] as Set)
+
+    and: "interned roles are still a plain set of the roles"
+    interned == roles
+    InternedRoles.of(interned).is(interned)
+
+    and: "equality is unaffected by the role ids"
+    p == Permissions.factory([(R): ["foo", "bar"], (W): ["bar"], (E): ["baz"]])
+  }
+
+  def "should only intern the role names permissions grant"() {
+    setup:
+    InternedRoles interned = InternedRoles.of([new Role("granted-later"), new Role("never-granted")] as Set)
+
+    expect: "roles no permissions grant are skipped"
+    !InternedRoles.ids.containsKey("granted-later")
+    !Permissions.factory([(R): ["foo"]]).isAuthorized(interned)
+
+    when:
+    Permissions p = Permissions.factory([(R): ["granted-later"]])
+
+    then: "until permissions grant them"
+    p.isAuthorized(interned)
+    p.getAuthorizations(interned) == [R] as Set
+    !InternedRoles.ids.containsKey("never-granted")
+  }
+
+  def "should see roles interned while they are being looked up"() {
+    setup:
+    def executor = Executors.newFixedThreadPool(2)
+    def denied = []
+
+    when: "permissions granting a new role are created while a user's roles are checked"
+    1000.times { i ->
+      def role = "racing-$i".toString()
+      def start = new CountDownLatch(1)
+      def interned = InternedRoles.of([new Role(role)] as Set)
+      def granting = executor.submit({
+        start.await()
+        Permissions.factory([(R): [role]])
+      } as Callable)
+      def checking = executor.submit({
+        start.await()
+        interned.getRoleIds()
+      } as Callable)
+      start.countDown()
+      def permissions = granting.get()
+      checking.get()
+
+      if (!permissions.isAuthorized(interned)) {
+        denied << role
+      }
+    }
+    executor.shutdown()
+
+    then: "the roles are granted once the permissions exist"
+    denied.isEmpty()
+  }
+
   def "test config props deserialization"() {
     expect: "Parsed from test/resources/config/application.yml"
     testConfigProps != null
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2020 Netflix, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.spinnaker.fiat.config;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.netflix.spinnaker.fiat.permissions.JacksonResourceCodec;
+import com.netflix.spinnaker.fiat.permissions.ResourceCodec;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+@EnableConfigurationProperties(RedisPermissionRepositoryConfigProps.class)
+public class RedisPermissionRepositoryConfig {
+
+  @Bean
+  @ConditionalOnMissingBean(ResourceCodec.class) // Allows for override
+  ResourceCodec resourceCodec(
+      ObjectMapper objectMapper, RedisPermissionRepositoryConfigProps configProps) {
+    return new JacksonResourceCodec(objectMapper, configProps.getCodec());
+  }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2020 Netflix, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.spinnaker.fiat.config;
+
+import com.netflix.spinnaker.fiat.permissions.JacksonResourceCodec;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+@Data
+@ConfigurationProperties("fiat.redis.repository")
+public class RedisPermissionRepositoryConfigProps {
+
+  /**
+   * Encoding used when writing resources to redis. Values in any supported encoding are always
+   * readable, so this can be changed on a running installation.
+   */
+  private JacksonResourceCodec.Format codec = JacksonResourceCodec.Format.JSON;
+
+  /**
+   * When enabled, account, application, service account and build service bodies are written once
+   * to a shared per-type table and users' hashes only reference them by name. Both layouts are
+   * always readable, so this can be turned on without migrating existing data.
+   *
+   * <p>As no user's own hash changes with a shared body, any change to one is recorded as a change
+   * of the unrestricted user, which makes clients following changes drop all cached permissions.
+   */
+  private boolean normalizeResources = false;
+
+  /** Number of users written per pipeline by {@code putAll}. */
+  private int putBatchSize = 200;
+
+  /** Number of {@code putAll} batches written concurrently. */
+  private int putThreads = 4;
+
+  /** Number of threads reading users concurrently when loading many users at once. */
+  private int readThreads = 4;
+
+  /**
+   * Approximate size of the responses to aim for in each pipeline when loading many users at once.
+   * Batch sizes are adjusted to it from the size of the users read so far.
+   */
+  private long readBatchTargetBytes = 4 * 1024 * 1024;
+
+  /**
+   * When enabled, concurrent single user reads are queued and sent to redis together in pipelines,
+   * so that a burst of reads shares a few connections instead of queueing on the pool.
+   */
+  private boolean batchReads = false;
+
+  /** Number of threads, and so connections, sending batched reads when {@code batchReads} is on. */
+  private int batchReadThreads = 2;
+}
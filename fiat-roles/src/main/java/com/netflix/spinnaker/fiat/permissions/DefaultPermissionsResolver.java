@@ -18,6 +18,10 @@ package com.netflix.spinnaker.fiat.permissions;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.netflix.spectator.api.Id;
+import com.netflix.spectator.api.NoopRegistry;
+import com.netflix.spectator.api.Registry;
 import com.netflix.spinnaker.fiat.config.FiatAdminConfig;
 import com.netflix.spinnaker.fiat.config.UnrestrictedResourceConfig;
 import com.netflix.spinnaker.fiat.model.UserPermission;
@@ -26,6 +30,7 @@ import com.netflix.spinnaker.fiat.model.resources.Role;
 import com.netflix.spinnaker.fiat.model.resources.ServiceAccount;
 import com.netflix.spinnaker.fiat.providers.ProviderException;
 import com.netflix.spinnaker.fiat.providers.ResourceProvider;
+import com.netflix.spinnaker.fiat.providers.ResourceSnapshot;
 import com.netflix.spinnaker.fiat.roles.UserRolesProvider;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -34,10 +39,13 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import lombok.NonNull;
+import lombok.Value;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
@@ -47,12 +55,25 @@ import org.springframework.stereotype.Component;
 @Slf4j
 public class DefaultPermissionsResolver implements PermissionsResolver {
 
+  /** Keys the resources resolved by role set in the snapshots they were resolved against. */
+  private static final Object RESOURCES_BY_ROLE_SET = new Object();
+
   private final UserRolesProvider userRolesProvider;
   private final ResourceProvider<ServiceAccount> serviceAccountProvider;
   private final ImmutableList<ResourceProvider<? extends Resource>> resourceProviders;
   private final FiatAdminConfig fiatAdminConfig;
   private final ObjectMapper mapper;
 
+  private Registry registry = new NoopRegistry();
+  private Id roleSetsId = registry.createId("fiat.resolver.roleSets");
+  private Id distinctRoleSetsId = registry.createId("fiat.resolver.distinctRoleSets");
+
+  /** The last snapshot taken to resolve users against, which the next one is versioned against. */
+  private ResourceSnapshot latestSnapshot;
+
+  /** The last snapshot users were resolved against, to record its role sets once superseded. */
+  private final AtomicReference<ResourceSnapshot> lastResolved = new AtomicReference<>();
+
   @Autowired
   public DefaultPermissionsResolver(
       UserRolesProvider userRolesProvider,
@@ -67,11 +88,24 @@ public class DefaultPermissionsResolver implements PermissionsResolver {
     this.mapper = mapper;
   }
 
+  @Autowired(required = false)
+  public void setRegistry(Registry registry) {
+    this.registry = registry;
+    this.roleSetsId = registry.createId("fiat.resolver.roleSets");
+    this.distinctRoleSetsId = registry.createId("fiat.resolver.distinctRoleSets");
+  }
+
   @Override
   public UserPermission resolveUnrestrictedUser() {
+    return resolveUnrestrictedUser(ResourceSnapshot.LIVE);
+  }
+
+  @Override
+  public UserPermission resolveUnrestrictedUser(@NonNull ResourceSnapshot snapshot) {
     return getUserPermission(
         UnrestrictedResourceConfig.UNRESTRICTED_USERNAME,
-        new HashSet<>(userRolesProvider.loadUnrestrictedRoles()));
+        new HashSet<>(userRolesProvider.loadUnrestrictedRoles()),
+        snapshot);
   }
 
   @Override
@@ -93,7 +127,7 @@ public class DefaultPermissionsResolver implements PermissionsResolver {
     Set<Role> combo =
         Stream.concat(roles.stream(), user.getExternalRoles().stream()).collect(Collectors.toSet());
 
-    return getUserPermission(user.getId(), combo);
+    return getUserPermission(user.getId(), combo, ResourceSnapshot.LIVE);
   }
 
   @Override
@@ -109,18 +143,20 @@ public class DefaultPermissionsResolver implements PermissionsResolver {
   }
 
   @SuppressWarnings("unchecked")
-  private UserPermission getUserPermission(String userId, Set<Role> roles) {
+  private UserPermission getUserPermission(
+      String userId, Set<Role> roles, ResourceSnapshot snapshot) {
     UserPermission permission =
         new UserPermission().setId(userId).setRoles(roles).setAdmin(resolveAdminRole(roles));
 
     for (ResourceProvider provider : resourceProviders) {
       try {
         if (UnrestrictedResourceConfig.UNRESTRICTED_USERNAME.equalsIgnoreCase(userId)) {
-          permission.addResources(provider.getAllUnrestricted());
+          permission.addResources(provider.getAllUnrestricted(snapshot));
         }
 
         if (!roles.isEmpty()) {
-          permission.addResources(provider.getAllRestricted(roles, permission.isAdmin()));
+          permission.addResources(
+              provider.getAllRestricted(snapshot, roles, permission.isAdmin()));
         }
       } catch (ProviderException pe) {
         throw new PermissionResolutionException(pe);
@@ -131,7 +167,19 @@ public class DefaultPermissionsResolver implements PermissionsResolver {
 
   @Override
   public Map<String, UserPermission> resolve(@NonNull Collection<ExternalUser> users) {
-    Map<String, Collection<Role>> allServiceAccountRoles = getServiceAccountRoles();
+    return resolve(users, takeResourceSnapshot());
+  }
+
+  /** Keeps using the same snapshot, and what is memoized in it, until the resources change. */
+  private synchronized ResourceSnapshot takeResourceSnapshot() {
+    latestSnapshot = ResourceSnapshot.take(resourceProviders, latestSnapshot);
+    return latestSnapshot;
+  }
+
+  @Override
+  public Map<String, UserPermission> resolve(
+      @NonNull Collection<ExternalUser> users, @NonNull ResourceSnapshot snapshot) {
+    Map<String, Collection<Role>> allServiceAccountRoles = getServiceAccountRoles(snapshot);
 
     Collection<ExternalUser> serviceAccounts =
         users.stream()
@@ -152,11 +200,11 @@ public class DefaultPermissionsResolver implements PermissionsResolver {
         serviceAccounts.stream()
             .collect(Collectors.toMap(ExternalUser::getId, ExternalUser::getExternalRoles)));
 
-    return resolveResources(userToRoles);
+    return resolveResources(userToRoles, snapshot);
   }
 
-  private Map<String, Collection<Role>> getServiceAccountRoles() {
-    return serviceAccountProvider.getAll().stream()
+  private Map<String, Collection<Role>> getServiceAccountRoles(ResourceSnapshot snapshot) {
+    return snapshot.get(serviceAccountProvider).stream()
         .map(ServiceAccount::toUserPermission)
         .collect(Collectors.toMap(UserPermission::getId, UserPermission::getRoles));
   }
@@ -183,29 +231,77 @@ public class DefaultPermissionsResolver implements PermissionsResolver {
     return userToRoles;
   }
 
+  /**
+   * Resolves the resources of each user. Users usually share their roles with many others, so the
+   * resources are only resolved once per distinct set of roles (and admin flag) and snapshot, and
+   * shared by all users that have it, including those of other batches of the same sync.
+   */
   private Map<String, UserPermission> resolveResources(
-      @NonNull Map<String, Collection<Role>> userToRoles) {
-    return userToRoles.entrySet().stream()
-        .map(
-            entry -> {
-              String username = entry.getKey();
-              Set<Role> userRoles = new HashSet<>(entry.getValue());
-
-              return new UserPermission()
-                  .setId(username)
-                  .setRoles(userRoles)
-                  .setAdmin(resolveAdminRole(userRoles))
-                  .addResources(getResources(userRoles, resolveAdminRole(userRoles)));
-            })
-        .collect(Collectors.toMap(UserPermission::getId, Function.identity()));
+      @NonNull Map<String, Collection<Role>> userToRoles, ResourceSnapshot snapshot) {
+    Map<RoleSet, Set<Resource>> resourcesByRoleSet = resourcesByRoleSet(snapshot);
+
+    Map<String, UserPermission> permissions =
+        userToRoles.entrySet().stream()
+            .map(
+                entry -> {
+                  String username = entry.getKey();
+                  Set<Role> userRoles = new HashSet<>(entry.getValue());
+                  boolean isAdmin = resolveAdminRole(userRoles);
+
+                  RoleSet roleSet = new RoleSet(ImmutableSet.copyOf(userRoles), isAdmin);
+                  Set<Resource> resources = resourcesByRoleSet.get(roleSet);
+                  registry.counter(roleSetsId.withTag("memoized", resources != null)).increment();
+                  if (resources == null) {
+                    resources = ImmutableSet.copyOf(getResources(userRoles, isAdmin, snapshot));
+                    resourcesByRoleSet.putIfAbsent(roleSet, resources);
+                  }
+
+                  return new UserPermission()
+                      .setId(username)
+                      .setRoles(userRoles)
+                      .setAdmin(isAdmin)
+                      .addResources(resources);
+                })
+            .collect(Collectors.toMap(UserPermission::getId, Function.identity()));
+
+    recordDistinctRoleSets(snapshot, resourcesByRoleSet);
+    return permissions;
+  }
+
+  private static Map<RoleSet, Set<Resource>> resourcesByRoleSet(ResourceSnapshot snapshot) {
+    return snapshot.memo(RESOURCES_BY_ROLE_SET, ConcurrentHashMap::new);
+  }
+
+  /**
+   * Records the number of distinct role sets resolved against a snapshot once users are resolved
+   * against another one, as a sync resolves its users in many batches against the same snapshot.
+   */
+  private void recordDistinctRoleSets(
+      ResourceSnapshot snapshot, Map<RoleSet, Set<Resource>> resourcesByRoleSet) {
+    if (snapshot == ResourceSnapshot.LIVE) {
+      registry.distributionSummary(distinctRoleSetsId).record(resourcesByRoleSet.size());
+      return;
+    }
+    ResourceSnapshot superseded = lastResolved.getAndSet(snapshot);
+    if (superseded != null && superseded != snapshot) {
+      int distinctRoleSets = resourcesByRoleSet(superseded).size();
+      registry.distributionSummary(distinctRoleSetsId).record(distinctRoleSets);
+    }
+  }
+
+  /** Identifies users whose resources resolve the same; roles are equal by (lower-case) name. */
+  @Value
+  private static class RoleSet {
+    Set<Role> roles;
+    boolean admin;
   }
 
-  private Set<Resource> getResources(Set<Role> roles, boolean isAdmin) {
+  private Set<Resource> getResources(Set<Role> roles, boolean isAdmin, ResourceSnapshot snapshot) {
     return resourceProviders.stream()
         .flatMap(
             provider -> {
               try {
-                return provider.getAllRestricted(roles, isAdmin).stream();
+                return provider.getAllRestricted(snapshot, roles, isAdmin).stream();
               } catch (ProviderException pe) {
                 throw new PermissionResolutionException(pe);
               }
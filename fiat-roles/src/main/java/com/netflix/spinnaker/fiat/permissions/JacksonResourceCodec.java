@@ -0,0 +1,93 @@
+/*
+ * Copyright 2020 Netflix, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.spinnaker.fiat.permissions;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.deser.DefaultDeserializationContext;
+import com.fasterxml.jackson.databind.ser.DefaultSerializerProvider;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.netflix.spinnaker.fiat.model.resources.Resource;
+import java.io.IOException;
+
+/**
+ * A {@link ResourceCodec} that writes either JSON or Smile (binary JSON), and reads both. Smile
+ * values are recognized by their header, which cannot start a JSON document.
+ */
+public class JacksonResourceCodec implements ResourceCodec {
+
+  public enum Format {
+    JSON,
+    SMILE
+  }
+
+  private static final byte[] SMILE_HEADER = {':', ')', '\n'};
+
+  private final ObjectMapper jsonMapper;
+  private final ObjectMapper smileMapper;
+  private final ObjectWriter writer;
+
+  public JacksonResourceCodec(ObjectMapper objectMapper, Format format) {
+    this.jsonMapper = objectMapper;
+    this.smileMapper = smileMapperLike(objectMapper);
+    this.writer =
+        (format == Format.SMILE ? smileMapper : jsonMapper)
+            .writer()
+            .without(SerializationFeature.INDENT_OUTPUT);
+  }
+
+  /**
+   * Creates a Smile mapper with the given mapper's features and registered modules, so that both
+   * formats read and write resources the same way. (Jackson only has copyWith(JsonFactory) for this
+   * as of 2.14.)
+   */
+  private static ObjectMapper smileMapperLike(ObjectMapper jsonMapper) {
+    ObjectMapper smileMapper =
+        new ObjectMapper(
+            new SmileFactory(),
+            (DefaultSerializerProvider) jsonMapper.getSerializerProvider(),
+            (DefaultDeserializationContext) jsonMapper.getDeserializationContext());
+    smileMapper.setSerializerFactory(jsonMapper.getSerializerFactory());
+    smileMapper.setConfig(jsonMapper.getSerializationConfig());
+    smileMapper.setConfig(jsonMapper.getDeserializationConfig());
+    smileMapper.setInjectableValues(jsonMapper.getInjectableValues());
+    return smileMapper;
+  }
+
+  @Override
+  public byte[] encode(Resource resource) throws IOException {
+    return writer.writeValueAsBytes(resource);
+  }
+
+  @Override
+  public <R extends Resource> R decode(byte[] value, Class<R> type) throws IOException {
+    return isSmile(value) ? smileMapper.readValue(value, type) : jsonMapper.readValue(value, type);
+  }
+
+  private static boolean isSmile(byte[] value) {
+    if (value.length < SMILE_HEADER.length) {
+      return false;
+    }
+    for (int i = 0; i < SMILE_HEADER.length; i++) {
+      if (value[i] != SMILE_HEADER[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -16,10 +16,17 @@
 
 package com.netflix.spinnaker.fiat.permissions;
 
+import com.netflix.spinnaker.fiat.model.PermissionChanges;
 import com.netflix.spinnaker.fiat.model.UserPermission;
+import com.netflix.spinnaker.fiat.model.resources.Resource;
+import com.netflix.spinnaker.fiat.model.resources.ResourceType;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 /**
  * A PermissionsRepository is responsible for persisting UserPermission objects under a user ID key.
@@ -37,6 +44,18 @@ public interface PermissionsRepository {
    */
   PermissionsRepository put(UserPermission permission);
 
+  /**
+   * Adds all of the specified permissions to the repository, overwriting anything under the same
+   * ids. Implementations should batch these writes where they can.
+   *
+   * @param permissions
+   * @return This PermissionRepository
+   */
+  default PermissionsRepository putAll(Collection<UserPermission> permissions) {
+    permissions.forEach(this::put);
+    return this;
+  }
+
   /**
    * Gets the UserPermission from the repository, if available. Returns an empty Optional if not
    * found.
@@ -46,9 +65,82 @@ public interface PermissionsRepository {
    */
   Optional<UserPermission> get(String id);
 
+  /**
+   * Gets the UserPermissions of the given users, keyed by user ID. Users that are not found are
+   * omitted. Implementations should batch these reads where they can.
+   *
+   * @param ids
+   * @return The found UserPermissions keyed by user ID.
+   */
+  default Map<String, UserPermission> getAll(Collection<String> ids) {
+    Map<String, UserPermission> permissions = new HashMap<>();
+    for (String id : ids) {
+      get(id).ifPresent(permission -> permissions.put(id, permission));
+    }
+    return permissions;
+  }
+
+  /**
+   * Gets only what is needed to view a user's resources of the given type: the user's roles, admin
+   * flag, and resources of that type (including unrestricted ones). Returns an empty Optional if
+   * the user is not found.
+   *
+   * @param id
+   * @param resourceType
+   * @return The partial UserPermission wrapped in an Optional.
+   */
+  default Optional<UserPermission> getResources(String id, ResourceType resourceType) {
+    return get(id)
+        .map(
+            permission ->
+                new UserPermission()
+                    .setId(permission.getId())
+                    .setRoles(permission.getRoles())
+                    .setAdmin(permission.isAdmin())
+                    .addResources(
+                        permission.getAllResources().stream()
+                            .filter(resource -> resource.getResourceType() == resourceType)
+                            .collect(Collectors.toList())));
+  }
+
+  /**
+   * Like {@link #getResources}, but with only the resource of the given type whose name matches
+   * resourceName, ignoring case, if the user has one. The user's roles are always all included.
+   *
+   * @param id
+   * @param resourceType
+   * @param resourceName
+   * @return The partial UserPermission wrapped in an Optional.
+   */
+  default Optional<UserPermission> getResource(
+      String id, ResourceType resourceType, String resourceName) {
+    return getResources(id, resourceType)
+        .map(
+            permission ->
+                new UserPermission()
+                    .setId(permission.getId())
+                    .setRoles(permission.getRoles())
+                    .setAdmin(permission.isAdmin())
+                    .addResources(
+                        permission.getAllResources().stream()
+                            .filter(resource -> resource.getResourceType() == resourceType)
+                            .filter(resource -> resource.getName().equalsIgnoreCase(resourceName))
+                            .collect(Collectors.toList())));
+  }
+
   /** Gets all UserPermissions in the repository keyed by user ID. */
   Map<String, UserPermission> getAllById();
 
+  /**
+   * Passes each UserPermission in the repository to the consumer, as getAllById() would return
+   * them. Implementations should avoid holding every UserPermission in memory at once.
+   *
+   * @param consumer
+   */
+  default void forEachUser(Consumer<UserPermission> consumer) {
+    getAllById().values().forEach(consumer);
+  }
+
   /**
    * Gets all UserPermissions in the repository that has at least 1 of the specified roles, keyed by
    * user ID. Because this method is usually used in conjuction with updating/syncing the users in
@@ -62,6 +154,26 @@ public interface PermissionsRepository {
    */
   Map<String, UserPermission> getAllByRoles(List<String> anyRoles);
 
+  /**
+   * Gets the users whose permissions were written or removed after the given change sequence
+   * number. A null sequence only returns the current sequence number, to start following changes
+   * from. Returns an empty Optional if the repository does not track changes.
+   *
+   * @param sequence
+   * @return The changes wrapped in an Optional.
+   */
+  default Optional<PermissionChanges> getChangesSince(Long sequence) {
+    return Optional.empty();
+  }
+
+  /**
+   * Removes whatever is stored of resources that are not among the given ones, and so can no
+   * longer be granted to anyone. Called once a full sync has rewritten every user against them.
+   *
+   * @param currentResources
+   */
+  default void pruneResources(Collection<? extends Resource> currentResources) {}
+
   /**
    * Delete the specified user permission.
    *
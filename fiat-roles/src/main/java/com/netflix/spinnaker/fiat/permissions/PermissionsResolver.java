@@ -17,6 +17,7 @@
 package com.netflix.spinnaker.fiat.permissions;
 
 import com.netflix.spinnaker.fiat.model.UserPermission;
+import com.netflix.spinnaker.fiat.providers.ResourceSnapshot;
 import java.util.Collection;
 import java.util.Map;
 
@@ -25,6 +26,12 @@ public interface PermissionsResolver {
   /** @return The UserPermission for an anonymous user. */
   UserPermission resolveUnrestrictedUser() throws PermissionResolutionException;
 
+  /** @return The UserPermission for an anonymous user, as of the given resources. */
+  default UserPermission resolveUnrestrictedUser(ResourceSnapshot snapshot)
+      throws PermissionResolutionException {
+    return resolveUnrestrictedUser();
+  }
+
   /** Resolves a single user's permissions. */
   UserPermission resolve(String userId) throws PermissionResolutionException;
 
@@ -37,6 +44,16 @@ public interface PermissionsResolver {
   Map<String, UserPermission> resolve(Collection<ExternalUser> users)
       throws PermissionResolutionException;
 
+  /**
+   * Resolves multiple user's permissions, all as of the given resources. Returned map is keyed by
+   * userId.
+   */
+  default Map<String, UserPermission> resolve(
+      Collection<ExternalUser> users, ResourceSnapshot snapshot)
+      throws PermissionResolutionException {
+    return resolve(users);
+  }
+
   /** Clears resource cache: apps, service accounts,... */
   void clearCache();
 }
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2020 Netflix, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.spinnaker.fiat.permissions;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Sends reads issued concurrently by many threads to redis together, in pipelines of up to {@code
+ * maxBatchSize} reads. Callers still wait for their own result, but only the dispatching threads
+ * hold connections, so a burst of reads shares a few connections instead of queueing on the pool.
+ * The dispatchers only read; each caller decodes its own value on its own thread.
+ */
+@Slf4j
+class PipelinedReadBatcher<K, V> implements AutoCloseable {
+
+  private final Function<List<K>, List<Supplier<V>>> batchRead;
+  private final int maxBatchSize;
+  private final long timeoutMs;
+
+  private final BlockingQueue<PendingRead<K, V>> pending = new LinkedBlockingQueue<>();
+  private final List<Thread> dispatchers = new ArrayList<>();
+  private volatile boolean closed;
+
+  /**
+   * @param batchRead reads a batch of keys in a single pipeline, returning a value per key in the
+   *     same order. Keys may repeat, and each must get its own value. Values are decoded by their
+   *     supplier, which the reading caller calls, so that decoding doesn't hold up the dispatchers
+   *     and a value that fails to decode only fails the read of its own key.
+   * @param timeoutMs how long a read waits for its value before failing
+   */
+  PipelinedReadBatcher(
+      String name,
+      Function<List<K>, List<Supplier<V>>> batchRead,
+      int maxBatchSize,
+      int threads,
+      long timeoutMs) {
+    this.batchRead = batchRead;
+    this.maxBatchSize = maxBatchSize;
+    this.timeoutMs = timeoutMs;
+
+    for (int i = 0; i < threads; i++) {
+      Thread dispatcher = new Thread(this::dispatch, name + "-" + i);
+      dispatcher.setDaemon(true);
+      dispatchers.add(dispatcher);
+      dispatcher.start();
+    }
+  }
+
+  V read(K key) throws InterruptedException, ExecutionException, TimeoutException {
+    if (closed) {
+      throw new IllegalStateException("Reads are no longer batched, as the batcher is closed.");
+    }
+    PendingRead<K, V> read = new PendingRead<>(key);
+    pending.add(read);
+    Supplier<V> value;
+    try {
+      value = read.result.get(timeoutMs, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException | InterruptedException e) {
+      // so that the dispatchers skip it, if it is still queued.
+      read.result.cancel(false);
+      throw e;
+    }
+
+    try {
+      return value.get();
+    } catch (RuntimeException e) {
+      throw new ExecutionException(e);
+    }
+  }
+
+  /** Stops the dispatching threads, failing any reads still waiting on them. */
+  @Override
+  public void close() {
+    closed = true;
+    dispatchers.forEach(Thread::interrupt);
+    List<PendingRead<K, V>> abandoned = new ArrayList<>();
+    pending.drainTo(abandoned);
+    abandoned.forEach(
+        read ->
+            read.result.completeExceptionally(
+                new IllegalStateException("The read batcher was closed.")));
+  }
+
+  private void dispatch() {
+    List<PendingRead<K, V>> batch = new ArrayList<>(maxBatchSize);
+    while (!closed) {
+      try {
+        batch.add(pending.take());
+      } catch (InterruptedException e) {
+        break;
+      }
+      pending.drainTo(batch, maxBatchSize - 1);
+      batch.removeIf(read -> read.result.isDone());
+      if (!batch.isEmpty()) {
+        readBatch(batch);
+      }
+      batch.clear();
+    }
+    log.info("Stopping {}.", Thread.currentThread().getName());
+  }
+
+  private void readBatch(List<PendingRead<K, V>> batch) {
+    List<Supplier<V>> values;
+    try {
+      values = batchRead.apply(batch.stream().map(read -> read.key).collect(Collectors.toList()));
+    } catch (Exception e) {
+      batch.forEach(read -> read.result.completeExceptionally(e));
+      return;
+    }
+
+    for (int i = 0; i < batch.size(); i++) {
+      batch.get(i).result.complete(values.get(i));
+    }
+  }
+
+  private static class PendingRead<K, V> {
+    private final K key;
+    private final CompletableFuture<Supplier<V>> result = new CompletableFuture<>();
+
+    PendingRead(K key) {
+      this.key = key;
+    }
+  }
+}
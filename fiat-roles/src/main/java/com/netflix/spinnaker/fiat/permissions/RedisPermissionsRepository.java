@@ -16,45 +16,100 @@
 
 package com.netflix.spinnaker.fiat.permissions;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.util.ArrayIterator;
-import com.google.common.collect.ArrayTable;
-import com.google.common.collect.HashBasedTable;
+import com.google.common.base.Throwables;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Table;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.netflix.spectator.api.Counter;
+import com.netflix.spectator.api.Registry;
+import com.netflix.spinnaker.fiat.config.RedisPermissionRepositoryConfigProps;
 import com.netflix.spinnaker.fiat.config.UnrestrictedResourceConfig;
+import com.netflix.spinnaker.fiat.model.PermissionChanges;
 import com.netflix.spinnaker.fiat.model.UserPermission;
 import com.netflix.spinnaker.fiat.model.resources.Resource;
 import com.netflix.spinnaker.fiat.model.resources.ResourceType;
 import com.netflix.spinnaker.fiat.model.resources.Role;
 import com.netflix.spinnaker.kork.jedis.RedisClientDelegate;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
+import javax.annotation.PreDestroy;
 import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
 import lombok.val;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
+import redis.clients.jedis.Pipeline;
 import redis.clients.jedis.Response;
 import redis.clients.jedis.ScanParams;
 import redis.clients.jedis.ScanResult;
+import redis.clients.jedis.Tuple;
+import redis.clients.jedis.util.SafeEncoder;
 
 /**
  * This Redis-backed permission repository is structured in a way to optimized reading types of
  * resource permissions. In general, this looks like a key schema like: <code>
  * "prefix:myuser@domain.org:resources": {
- * "resourceName1": "[serialized json of resourceName1]",
- * "resourceName2": "[serialized json of resourceName2]"
+ * "resourceName1": "[encoded resourceName1]",
+ * "resourceName2": "[encoded resourceName2]"
  * }
  * </code> Additionally, a helper key, called the "all users" key, maintains a set of all usernames.
+ * Values are encoded by the configured {@link ResourceCodec} (JSON by default).
  *
  * <p>It's important to note that gets and puts are not symmetrical by design. That is, what you put
  * in will likely not be exactly what you get out. That's because of "unrestricted" resources, which
  * are added to the returned UserPermission.
+ *
+ * <p>A content digest of each user's serialized resources is kept per resource type in the
+ * "digests" hash. Puts compare against it and only rewrite the resource types that actually
+ * changed, so a sync that resolves mostly unchanged users does very little writing. Only the
+ * users' entries in the role, admin and all users indexes are always written.
+ *
+ * <p>Writes to the unrestricted user bump its "version" key. Reads keep a decoded snapshot of the
+ * unrestricted user in memory and only reload it when that version changes, so a single user read
+ * only fetches that user's own keys.
+ *
+ * <p>With {@code fiat.redis.repository.normalizeResources} enabled, the bodies of resources that
+ * are identical for every user who can see them (i.e. everything but roles) are written once to a
+ * shared "resources" hash per resource type, and user hashes hold a reference marker in their
+ * place: <code>
+ * "prefix:resources:applications": {
+ * "resourceName1": "[encoded resourceName1]"
+ * }
+ * "prefix:permissions:myuser@domain.org:applications": {
+ * "resourceName1": "#"
+ * }
+ * </code> A digest of each shared body is kept in the shared "digests" hash, so that puts only
+ * rewrite bodies whose stored digest differs. Changes to the shared tables bump their "version"
+ * key, and reads resolve references from a decoded in-memory snapshot that is only reloaded when
+ * that version changes. Bodies of resources that are no longer provided are pruned after each full
+ * sync. Inline values remain readable in either mode.
+ *
+ * <p>Every written or removed user is recorded in the "changes" sorted set, scored by a change
+ * sequence number, so clients can drop just the cached permissions that changed since they last
+ * asked. Only the latest change of each user and the most recent changes overall are kept. Changes
+ * of the unrestricted user, and of shared resource bodies, reset every client's cache.
+ *
+ * <p>With {@code fiat.redis.repository.batchReads} enabled, single user reads issued concurrently
+ * are sent to redis together in one pipeline by a few dispatching threads, rather than each taking
+ * a connection from the pool.
  */
 @Component
 @Slf4j
@@ -64,143 +119,759 @@ public class RedisPermissionsRepository implements PermissionsRepository {
   private static final String KEY_ROLES = "roles";
   private static final String KEY_ALL_USERS = "users";
   private static final String KEY_ADMIN = "admin";
+  private static final String KEY_DIGESTS = "digests";
+  private static final String KEY_VERSION = "version";
+  private static final String KEY_RESOURCES = "resources";
+  private static final String KEY_CHANGES = "changes";
+  private static final String KEY_SEQUENCE = "sequence";
+
+  /** Stored in a user's hash in place of a body kept in the shared resource table. */
+  private static final byte[] RESOURCE_REFERENCE = {'#'};
+
+  private static final Set<ResourceType> SHARED_TYPES =
+      Collections.unmodifiableSet(
+          EnumSet.of(
+              ResourceType.ACCOUNT,
+              ResourceType.APPLICATION,
+              ResourceType.SERVICE_ACCOUNT,
+              ResourceType.BUILD_SERVICE));
+
+  private static final int MAX_RECORDED_CHANGES = 100_000;
+
+  /**
+   * Scores the users in ARGV[2..] with the next numbers of the change sequence in KEYS[2], adds
+   * them to the changes set in KEYS[1] and trims it to the latest ARGV[1] entries. Being atomic,
+   * anyone who reads a sequence number can then also read every change numbered up to it.
+   */
+  private static final String RECORD_CHANGES_SCRIPT =
+      "local n = #ARGV - 1\n"
+          + "local last = redis.call('incrby', KEYS[2], n)\n"
+          + "for i = 1, n do\n"
+          + "  redis.call('zadd', KEYS[1], last - n + i, ARGV[i + 1])\n"
+          + "end\n"
+          + "redis.call('zremrangebyrank', KEYS[1], 0, -tonumber(ARGV[1]) - 1)\n"
+          + "return last";
+
+  private static final int INITIAL_READ_BATCH_SIZE = 10;
+  private static final int MAX_READ_BATCH_SIZE = 1000;
+  private static final int MAX_BATCHED_GETS = 100;
+
+  /** Handed off by each reader once it has no more users to read. */
+  private static final List<UserPermission> END_OF_READS = new ArrayList<>(0);
+
+  private static final HashFunction DIGEST_FUNCTION = Hashing.murmur3_128();
 
   private static final String UNRESTRICTED = UnrestrictedResourceConfig.UNRESTRICTED_USERNAME;
 
-  private final ObjectMapper objectMapper;
+  private final ResourceCodec resourceCodec;
   private final RedisClientDelegate redisClientDelegate;
 
   private final String prefix;
+  private final boolean normalizeResources;
+  private final int putBatchSize;
+  private final int putThreads;
+  private final int readThreads;
+  private final long readBatchTargetBytes;
+
+  private final Counter writtenCounter;
+  private final Counter skippedCounter;
+  private final Counter danglingReferenceCounter;
+
+  private final AtomicReference<UnrestrictedSnapshot> unrestrictedSnapshot =
+      new AtomicReference<>();
+
+  private final AtomicReference<SharedResourceSnapshot> sharedSnapshot =
+      new AtomicReference<>(SharedResourceSnapshot.EMPTY);
+
+  /**
+   * Run the concurrent reads and the concurrent writes of all calls, so that the threads and
+   * connections they take are bounded however many calls run at once. Reads and writes don't share
+   * threads, so that writes made while reading (e.g. by a forEachUser consumer) always get some.
+   */
+  private final ExecutorService readExecutor;
+
+  private final ExecutorService writeExecutor;
 
+  /** Batches concurrent single user reads, if {@code batchReads} is enabled. */
+  private final PipelinedReadBatcher<String, Optional<UserPermission>> readBatcher;
+
+  public RedisPermissionsRepository(
+      ResourceCodec resourceCodec,
+      RedisClientDelegate redisClientDelegate,
+      Registry registry,
+      RedisPermissionRepositoryConfigProps configProps,
+      String prefix) {
+    this(resourceCodec, redisClientDelegate, registry, configProps, prefix, 2000);
+  }
+
+  /**
+   * @param redisTimeoutMs the socket timeout of the redis connections. A batched read waits for up
+   *     to twice that, to allow for a batch queued behind one that is already being read.
+   */
   @Autowired
   public RedisPermissionsRepository(
-      ObjectMapper objectMapper,
+      ResourceCodec resourceCodec,
       RedisClientDelegate redisClientDelegate,
-      @Value("${fiat.redis.prefix:spinnaker:fiat}") String prefix) {
-    this.objectMapper = objectMapper;
+      Registry registry,
+      RedisPermissionRepositoryConfigProps configProps,
+      @Value("${fiat.redis.prefix:spinnaker:fiat}") String prefix,
+      @Value("${redis.timeout:2000}") int redisTimeoutMs) {
+    this.resourceCodec = resourceCodec;
     this.redisClientDelegate = redisClientDelegate;
     this.prefix = prefix;
+    this.normalizeResources = configProps.isNormalizeResources();
+    this.putBatchSize = Math.max(1, configProps.getPutBatchSize());
+    this.putThreads = configProps.getPutThreads();
+    this.readThreads = Math.max(1, configProps.getReadThreads());
+    this.readBatchTargetBytes = configProps.getReadBatchTargetBytes();
+    this.readExecutor =
+        Executors.newFixedThreadPool(
+            readThreads,
+            new ThreadFactoryBuilder().setNameFormat("fiat-redis-read-%d").setDaemon(true).build());
+    this.writeExecutor =
+        Executors.newFixedThreadPool(
+            Math.max(1, putThreads),
+            new ThreadFactoryBuilder()
+                .setNameFormat("fiat-redis-write-%d")
+                .setDaemon(true)
+                .build());
+    this.readBatcher =
+        configProps.isBatchReads()
+            ? new PipelinedReadBatcher<>(
+                "fiat-redis-read-batcher",
+                this::readFromRedis,
+                MAX_BATCHED_GETS,
+                Math.max(1, configProps.getBatchReadThreads()),
+                2L * redisTimeoutMs)
+            : null;
+
+    this.writtenCounter = registry.counter("fiat.permissionsRepository.put", "skipped", "false");
+    this.skippedCounter = registry.counter("fiat.permissionsRepository.put", "skipped", "true");
+    this.danglingReferenceCounter =
+        registry.counter("fiat.permissionsRepository.danglingReferences");
+  }
+
+  /** Stops the threads reading and writing concurrently, and batching reads if enabled. */
+  @PreDestroy
+  public void close() {
+    readExecutor.shutdownNow();
+    writeExecutor.shutdownNow();
+    if (readBatcher != null) {
+      readBatcher.close();
+    }
   }
 
   @Override
   public RedisPermissionsRepository put(@NonNull UserPermission permission) {
-    Map<ResourceType, Map<String, String>> resourceTypeToRedisValue =
-        new HashMap<>(ResourceType.values().length);
+    try {
+      putChunk(Collections.singletonList(permission));
+    } catch (Exception e) {
+      log.error("Storage exception writing " + permission.getId() + " entry.", e);
+    }
+    return this;
+  }
+
+  /**
+   * Writes users in chunks of {@code fiat.redis.repository.putBatchSize}, each chunk costing one
+   * pipeline to read the stored digests and roles and one pipeline to write whatever changed. Up to
+   * {@code fiat.redis.repository.putThreads} chunks are written concurrently.
+   */
+  @Override
+  public RedisPermissionsRepository putAll(@NonNull Collection<UserPermission> permissions) {
+    List<Runnable> writes =
+        Lists.partition(new ArrayList<>(permissions), putBatchSize).stream()
+            .map(chunk -> (Runnable) () -> putChunkQuietly(chunk))
+            .collect(Collectors.toList());
+    try {
+      runConcurrently(writes, putThreads, writeExecutor);
+    } catch (Exception e) {
+      log.error("Exception writing " + permissions.size() + " entries.", e);
+    }
+    return this;
+  }
+
+  private void putChunkQuietly(List<UserPermission> chunk) {
+    try {
+      putChunk(chunk);
+    } catch (Exception e) {
+      log.error("Storage exception writing " + chunk.size() + " entries.", e);
+    }
+  }
+
+  private void putChunk(List<UserPermission> chunk) {
+    Map<String, SharedBody> sharedBodies = new TreeMap<>();
+    List<PendingWrite> pending =
+        chunk.stream()
+            .map(permission -> encode(permission, sharedBodies))
+            .collect(Collectors.toList());
+    String[] sharedFields = sharedBodies.keySet().toArray(new String[0]);
+
+    List<String> storedSharedDigests =
+        redisClientDelegate.withMultiKeyPipeline(
+            p -> {
+              Response<List<String>> sharedDigests =
+                  sharedFields.length == 0 ? null : p.hmget(sharedDigestsKey(), sharedFields);
+              List<Response<List<String>>> storedDigests = new ArrayList<>(pending.size());
+              List<Response<Map<byte[], byte[]>>> storedRoles = new ArrayList<>(pending.size());
+              Response<String> storedVersion = null;
+              for (PendingWrite write : pending) {
+                storedDigests.add(p.hmget(digestsKey(), digestFields(write.userId)));
+                storedRoles.add(
+                    p.hgetAll(SafeEncoder.encode(userKey(write.userId, ResourceType.ROLE))));
+                if (UNRESTRICTED.equals(write.userId)) {
+                  storedVersion = p.get(unrestrictedVersionKey());
+                }
+              }
+              p.sync();
+
+              for (int i = 0; i < pending.size(); i++) {
+                PendingWrite write = pending.get(i);
+                write.stored =
+                    new StoredState(
+                        storedDigests.get(i).get(),
+                        storedRoles.get(i).get(),
+                        UNRESTRICTED.equals(write.userId) ? storedVersion.get() : null);
+              }
+              return sharedDigests == null ? Collections.<String>emptyList() : sharedDigests.get();
+            });
+
+    Map<ResourceType, Map<String, byte[]>> changedSharedResources =
+        new EnumMap<>(ResourceType.class);
+    Map<String, String> changedSharedDigests = new HashMap<>();
+    for (int i = 0; i < sharedFields.length; i++) {
+      SharedBody shared = sharedBodies.get(sharedFields[i]);
+      if (!shared.digest.equals(storedSharedDigests.get(i))) {
+        changedSharedResources
+            .computeIfAbsent(shared.type, key -> new TreeMap<>())
+            .put(shared.name, shared.body);
+        changedSharedDigests.put(sharedFields[i], shared.digest);
+      }
+    }
+    if (!changedSharedResources.isEmpty()) {
+      // written before the users' references to them, so a reader never sees a dangling one.
+      putSharedResources(changedSharedResources, changedSharedDigests);
+    }
+
+    List<PendingWrite> changed = new ArrayList<>(pending.size());
+    for (PendingWrite write : pending) {
+      for (int i = 0; i < ResourceType.values().length; i++) {
+        ResourceType r = ResourceType.values()[i];
+        if (!write.digests.get(r).equals(write.stored.digests.get(i))) {
+          write.changedTypes.add(r);
+        }
+      }
+
+      boolean unversionedUnrestricted =
+          UNRESTRICTED.equals(write.userId) && write.stored.version == null;
+      if (write.changedTypes.isEmpty() && !unversionedUnrestricted) {
+        skippedCounter.increment();
+      } else {
+        changed.add(write);
+      }
+    }
+
+    redisClientDelegate.withMultiKeyPipeline(
+        pipeline -> {
+          // index entries are cheap and idempotent, so they are written for unchanged users too,
+          // repairing any that were lost.
+          pending.forEach(write -> queueIndexes(pipeline, write));
+          if (changed.isEmpty()) {
+            pipeline.sync();
+            return;
+          }
+
+          Map<String, String> changedDigests = new HashMap<>();
+          for (PendingWrite write : changed) {
+            queueWrite(pipeline, write);
+            write.changedTypes.forEach(
+                r -> changedDigests.put(digestField(write.userId, r), write.digests.get(r)));
+            if (UNRESTRICTED.equals(write.userId)) {
+              pipeline.incr(unrestrictedVersionKey());
+            }
+          }
+          queueRecordChanges(
+              pipeline, changed.stream().map(write -> write.userId).collect(Collectors.toList()));
+          // written last so that an interrupted pipeline is retried on the next put.
+          if (!changedDigests.isEmpty()) {
+            pipeline.hmset(digestsKey(), changedDigests);
+          }
+          pipeline.sync();
+        });
+    writtenCounter.increment(changed.size());
+  }
+
+  /**
+   * Encodes a user's resources. Bodies of shared resources are added to {@code sharedBodies}, by
+   * {@link #sharedField}, to be compared against the stored ones.
+   */
+  private PendingWrite encode(UserPermission permission, Map<String, SharedBody> sharedBodies) {
+    Map<ResourceType, Map<String, byte[]>> resourceTypeToRedisValue =
+        new EnumMap<>(ResourceType.class);
 
     permission
         .getAllResources()
         .forEach(
             resource -> {
+              ResourceType r = resource.getResourceType();
               try {
+                byte[] encoded = resourceCodec.encode(resource);
+                if (normalizeResources && SHARED_TYPES.contains(r)) {
+                  sharedBodies.put(
+                      sharedField(r, resource.getName()),
+                      new SharedBody(r, resource.getName(), encoded));
+                  encoded = RESOURCE_REFERENCE;
+                }
                 resourceTypeToRedisValue
-                    .computeIfAbsent(resource.getResourceType(), key -> new HashMap<>())
-                    .put(resource.getName(), objectMapper.writeValueAsString(resource));
-              } catch (JsonProcessingException jpe) {
-                log.error("Serialization exception writing " + permission.getId() + " entry.", jpe);
+                    .computeIfAbsent(r, key -> new TreeMap<>())
+                    .put(resource.getName(), encoded);
+              } catch (IOException ioe) {
+                log.error("Serialization exception writing " + permission.getId() + " entry.", ioe);
               }
             });
 
-    try {
+    return new PendingWrite(
+        permission,
+        resourceTypeToRedisValue,
+        computeDigests(resourceTypeToRedisValue, permission));
+  }
+
+  /** Queues adding a user to the index of all users, its roles' indexes and the admin flag. */
+  private void queueIndexes(Pipeline pipeline, PendingWrite write) {
+    UserPermission permission = write.permission;
+    String userId = write.userId;
+
+    pipeline.sadd(allUsersKey(), userId);
+    if (permission.isAdmin()) {
+      pipeline.sadd(adminKey(), userId);
+    } else {
+      pipeline.srem(adminKey(), userId);
+    }
+    permission.getRoles().forEach(role -> pipeline.sadd(roleKey(role), userId));
+  }
+
+  /** Queues the writes of a user's changed resource types, and its removal from dropped roles. */
+  private void queueWrite(Pipeline pipeline, PendingWrite write) {
+    UserPermission permission = write.permission;
+    String userId = write.userId;
+
+    if (write.changedTypes.contains(ResourceType.ROLE)) {
       Set<Role> existingRoles =
-          redisClientDelegate.withCommandsClient(
-              client -> {
-                return client.hgetAll(userKey(permission.getId(), ResourceType.ROLE)).values()
-                    .stream()
-                    .map(
-                        (ThrowingFunction<String, Role>)
-                            serialized -> objectMapper.readValue(serialized, Role.class))
-                    .collect(Collectors.toSet());
-              });
+          write.stored.roles.values().stream()
+              .map(
+                  (ThrowingFunction<byte[], Role>)
+                      serialized -> resourceCodec.decode(serialized, Role.class))
+              .collect(Collectors.toSet());
+      existingRoles.stream()
+          .filter(it -> !permission.getRoles().contains(it))
+          .forEach(role -> pipeline.srem(roleKey(role), userId));
+    }
 
-      redisClientDelegate.withMultiKeyPipeline(
-          pipeline -> {
-            String userId = permission.getId();
-            pipeline.sadd(allUsersKey(), userId);
+    for (ResourceType r : write.changedTypes) {
+      String userResourceKey = userKey(userId, r);
+      Map<String, byte[]> redisValue = write.resourceTypeToRedisValue.get(r);
+      String tempKey = UUID.randomUUID().toString();
+      if (redisValue != null && !redisValue.isEmpty()) {
+        pipeline.hmset(SafeEncoder.encode(tempKey), toBinaryHash(redisValue));
+        pipeline.rename(tempKey, userResourceKey);
+      } else {
+        pipeline.del(userResourceKey);
+      }
+    }
+  }
 
-            if (permission.isAdmin()) {
-              pipeline.sadd(adminKey(), userId);
-            } else {
-              pipeline.srem(adminKey(), userId);
-            }
+  /**
+   * Writes the given resource bodies to the shared resource tables along with their digests, and
+   * bumps their version so that readers reload their snapshot.
+   *
+   * <p>Users reference shared bodies by name only, so their own hashes don't change with them and
+   * there is no index of who references what. The change is recorded as one of the unrestricted
+   * user instead, which tells clients to drop all of their cached permissions.
+   */
+  private void putSharedResources(
+      Map<ResourceType, Map<String, byte[]>> changedSharedResources,
+      Map<String, String> changedSharedDigests) {
+    redisClientDelegate.withMultiKeyPipeline(
+        pipeline -> {
+          changedSharedResources.forEach(
+              (r, bodies) ->
+                  pipeline.hmset(SafeEncoder.encode(sharedKey(r)), toBinaryHash(bodies)));
+          pipeline.incr(sharedVersionKey());
+          queueRecordChanges(pipeline, Collections.singletonList(UNRESTRICTED));
+          // written last so that an interrupted pipeline is retried on the next put.
+          pipeline.hmset(sharedDigestsKey(), changedSharedDigests);
+          pipeline.sync();
+        });
+  }
 
-            permission.getRoles().forEach(role -> pipeline.sadd(roleKey(role), userId));
-            existingRoles.stream()
-                .filter(it -> !permission.getRoles().contains(it))
-                .forEach(role -> pipeline.srem(roleKey(role), userId));
+  /**
+   * Deletes the shared bodies, and their digests, of resources that are not among the current ones.
+   * Users synced against the current resources no longer reference them.
+   */
+  @Override
+  public void pruneResources(@NonNull Collection<? extends Resource> currentResources) {
+    Set<String> currentFields =
+        currentResources.stream()
+            .filter(resource -> SHARED_TYPES.contains(resource.getResourceType()))
+            .map(resource -> sharedField(resource.getResourceType(), resource.getName()))
+            .collect(Collectors.toSet());
 
-            for (ResourceType r : ResourceType.values()) {
-              String userResourceKey = userKey(userId, r);
-              Map<String, String> redisValue = resourceTypeToRedisValue.get(r);
-              String tempKey = UUID.randomUUID().toString();
-              if (redisValue != null && !redisValue.isEmpty()) {
-                pipeline.hmset(tempKey, redisValue);
-                pipeline.rename(tempKey, userResourceKey);
-              } else {
-                pipeline.del(userResourceKey);
-              }
+    try {
+      Map<ResourceType, Set<String>> storedNames =
+          redisClientDelegate.withMultiKeyPipeline(
+              p -> {
+                Map<ResourceType, Response<Set<String>>> responses =
+                    new EnumMap<>(ResourceType.class);
+                for (ResourceType r : SHARED_TYPES) {
+                  responses.put(r, p.hkeys(sharedKey(r)));
+                }
+                p.sync();
+                Map<ResourceType, Set<String>> result = new EnumMap<>(ResourceType.class);
+                responses.forEach((r, response) -> result.put(r, response.get()));
+                return result;
+              });
+
+      Map<ResourceType, String[]> prunedNames = new EnumMap<>(ResourceType.class);
+      List<String> prunedFields = new ArrayList<>();
+      storedNames.forEach(
+          (r, names) -> {
+            List<String> pruned =
+                names.stream()
+                    .filter(name -> !currentFields.contains(sharedField(r, name)))
+                    .collect(Collectors.toList());
+            if (!pruned.isEmpty()) {
+              prunedNames.put(r, pruned.toArray(new String[0]));
+              pruned.forEach(name -> prunedFields.add(sharedField(r, name)));
             }
+          });
+      if (prunedFields.isEmpty()) {
+        return;
+      }
+
+      redisClientDelegate.withMultiKeyPipeline(
+          pipeline -> {
+            // digests first, so that a body written again after all is never skipped.
+            pipeline.hdel(sharedDigestsKey(), prunedFields.toArray(new String[0]));
+            prunedNames.forEach((r, names) -> pipeline.hdel(sharedKey(r), names));
+            pipeline.incr(sharedVersionKey());
             pipeline.sync();
           });
+      log.info("Pruned {} shared resources that are no longer provided.", prunedFields.size());
     } catch (Exception e) {
-      log.error("Storage exception writing " + permission.getId() + " entry.", e);
+      log.error("Storage exception pruning shared resources.", e);
     }
-    return this;
+  }
+
+  /**
+   * Digests each resource type's serialized values. The admin flag is folded into the role digest,
+   * as it is derived from (and written alongside) the user's roles.
+   */
+  private static Map<ResourceType, String> computeDigests(
+      Map<ResourceType, Map<String, byte[]>> resourceTypeToRedisValue, UserPermission permission) {
+    Map<ResourceType, String> digests = new EnumMap<>(ResourceType.class);
+    for (ResourceType r : ResourceType.values()) {
+      Hasher hasher = DIGEST_FUNCTION.newHasher();
+      // values are kept in name order, so equal content always hashes the same.
+      resourceTypeToRedisValue
+          .getOrDefault(r, Collections.emptyMap())
+          .forEach(
+              (name, value) ->
+                  hasher
+                      .putString(name, StandardCharsets.UTF_8)
+                      .putByte((byte) 0)
+                      .putInt(value.length)
+                      .putBytes(value));
+      if (r == ResourceType.ROLE) {
+        hasher.putBoolean(permission.isAdmin());
+      }
+      digests.put(r, hasher.hash().toString());
+    }
+    return digests;
+  }
+
+  private static Map<byte[], byte[]> toBinaryHash(Map<String, byte[]> redisValue) {
+    Map<byte[], byte[]> binaryHash = new HashMap<>(redisValue.size());
+    redisValue.forEach((name, value) -> binaryHash.put(SafeEncoder.encode(name), value));
+    return binaryHash;
   }
 
   @Override
   public Optional<UserPermission> get(@NonNull String id) {
     try {
-      return redisClientDelegate.withMultiKeyPipeline(
-          p -> {
-            RawUserPermission userResponseMap = new RawUserPermission();
-            RawUserPermission unrestrictedResponseMap = new RawUserPermission();
+      if (readBatcher != null) {
+        return readBatcher.read(id);
+      }
+      return getFromRedis(Collections.singletonList(id)).get(0);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      log.error("Interrupted reading " + id + " entry.", e);
+    } catch (Exception e) {
+      log.error("Storage exception reading " + id + " entry.", e);
+    }
+    return Optional.empty();
+  }
 
-            Response<Boolean> isUserInRepo = p.sismember(allUsersKey(), id);
+  /**
+   * Reads the given users in a single pipeline, each merged with the unrestricted user. Returns a
+   * result per id, in the same order.
+   */
+  private List<Optional<UserPermission>> getFromRedis(List<String> ids) {
+    return readFromRedis(ids).stream().map(Supplier::get).collect(Collectors.toList());
+  }
+
+  /**
+   * Reads the given users in a single pipeline, returning a result per id in the same order. Each
+   * user is only decoded, and merged with the unrestricted user, by its own supplier.
+   */
+  private List<Supplier<Optional<UserPermission>>> readFromRedis(List<String> ids) {
+    return redisClientDelegate.withMultiKeyPipeline(
+        p -> {
+          List<Response<Boolean>> isUserInRepo = new ArrayList<>(ids.size());
+          List<RawUserPermission> userResponseMaps = new ArrayList<>(ids.size());
+          List<Response<Boolean>> admin = new ArrayList<>(ids.size());
+          for (String id : ids) {
+            isUserInRepo.add(p.sismember(allUsersKey(), id));
+            RawUserPermission userResponseMap = new RawUserPermission();
             for (ResourceType r : ResourceType.values()) {
-              Response<Map<String, String>> resourceMap = p.hgetAll(userKey(id, r));
-              userResponseMap.put(r, resourceMap);
-              Response<Map<String, String>> unrestrictedMap = p.hgetAll(unrestrictedUserKey(r));
-              unrestrictedResponseMap.put(r, unrestrictedMap);
-              log.info("Resource: {}; map size: {}", r, unrestrictedResponseMap.size());
+              userResponseMap.put(r, p.hgetAll(SafeEncoder.encode(userKey(id, r))));
             }
-            Response<Boolean> admin = p.sismember(adminKey(), id);
-            p.sync();
+            userResponseMaps.add(userResponseMap);
+            admin.add(p.sismember(adminKey(), id));
+          }
+          Response<String> unrestrictedVersion = p.get(unrestrictedVersionKey());
+          Response<String> sharedVersion = p.get(sharedVersionKey());
+          p.sync();
 
-            if (!isUserInRepo.get()) {
-              return Optional.empty();
-            }
+          SharedResourceSnapshot shared = getSharedResources(sharedVersion.get());
+          UserPermission unrestrictedUser = getUnrestrictedUser(unrestrictedVersion.get(), shared);
 
-            userResponseMap.isAdmin = admin.get();
-            UserPermission unrestrictedUser =
-                getUserPermission(UNRESTRICTED, unrestrictedResponseMap);
-            return Optional.of(getUserPermission(id, userResponseMap).merge(unrestrictedUser));
-          });
+          List<Supplier<Optional<UserPermission>>> permissions = new ArrayList<>(ids.size());
+          for (int i = 0; i < ids.size(); i++) {
+            String id = ids.get(i);
+            Response<Boolean> isInRepo = isUserInRepo.get(i);
+            Response<Boolean> isAdmin = admin.get(i);
+            RawUserPermission userResponseMap = userResponseMaps.get(i);
+            permissions.add(
+                () -> {
+                  if (!isInRepo.get()) {
+                    return Optional.empty();
+                  }
+                  userResponseMap.isAdmin = isAdmin.get();
+                  return Optional.of(
+                      getUserPermission(id, userResponseMap, shared).merge(unrestrictedUser));
+                });
+          }
+          return permissions;
+        });
+  }
+
+  @Override
+  public Map<String, UserPermission> getAll(@NonNull Collection<String> ids) {
+    List<String> distinctIds = new ArrayList<>(new LinkedHashSet<>(ids));
+    Map<String, UserPermission> permissions = new ConcurrentHashMap<>(distinctIds.size());
+    try {
+      runConcurrently(
+          Lists.partition(distinctIds, MAX_BATCHED_GETS).stream()
+              .<Runnable>map(
+                  batch ->
+                      () -> {
+                        List<Optional<UserPermission>> found = getFromRedis(batch);
+                        for (int i = 0; i < batch.size(); i++) {
+                          String id = batch.get(i);
+                          found.get(i).ifPresent(permission -> permissions.put(id, permission));
+                        }
+                      })
+              .collect(Collectors.toList()),
+          readThreads,
+          readExecutor);
     } catch (Exception e) {
-      log.error("Storage exception reading " + id + " entry.", e);
+      log.error("Storage exception reading " + distinctIds.size() + " entries.", e);
+      return new HashMap<>(0);
+    }
+    return new HashMap<>(permissions);
+  }
+
+  @Override
+  public Optional<UserPermission> getResources(
+      @NonNull String id, @NonNull ResourceType resourceType) {
+    try {
+      return getPartialFromRedis(id, resourceType, null);
+    } catch (Exception e) {
+      log.error("Storage exception reading " + id + " " + resourceType + " entries.", e);
     }
     return Optional.empty();
   }
 
   @Override
-  public Map<String, UserPermission> getAllById() {
-    Table<String, ResourceType, Response<Map<String, String>>> responseTable = getAllFromRedis();
-    if (responseTable == null) {
-      return new HashMap<>(0);
+  public Optional<UserPermission> getResource(
+      @NonNull String id, @NonNull ResourceType resourceType, @NonNull String resourceName) {
+    try {
+      Optional<UserPermission> permission = getPartialFromRedis(id, resourceType, resourceName);
+      if (!permission.isPresent()
+          || resourceType == ResourceType.ROLE
+          || permission.get().getAllResources().stream()
+              .anyMatch(r -> r.getResourceType() == resourceType)) {
+        return permission;
+      }
+      // names are matched ignoring case, so look through all of them before giving up.
+      return PermissionsRepository.super.getResource(id, resourceType, resourceName);
+    } catch (Exception e) {
+      log.error("Storage exception reading " + id + " " + resourceType + " entry.", e);
     }
+    return Optional.empty();
+  }
 
-    Map<String, UserPermission> allById = new HashMap<>(responseTable.rowKeySet().size());
+  /**
+   * Reads only a user's roles, admin flag and resources of one type, merged with the unrestricted
+   * user's resources of that type. With a resource name, only that field of the user's hash is
+   * read, and only a resource of exactly that name is returned.
+   */
+  private Optional<UserPermission> getPartialFromRedis(
+      String id, ResourceType resourceType, String resourceName) {
+    return redisClientDelegate.withMultiKeyPipeline(
+        p -> {
+          byte[] resourceKey = SafeEncoder.encode(userKey(id, resourceType));
+          Response<Boolean> isUserInRepo = p.sismember(allUsersKey(), id);
+          Response<Map<byte[], byte[]>> roles =
+              p.hgetAll(SafeEncoder.encode(userKey(id, ResourceType.ROLE)));
+          Response<Map<byte[], byte[]>> resources =
+              resourceName == null ? p.hgetAll(resourceKey) : null;
+          Response<byte[]> resource =
+              resourceName == null ? null : p.hget(resourceKey, SafeEncoder.encode(resourceName));
+          Response<Boolean> admin = p.sismember(adminKey(), id);
+          Response<String> unrestrictedVersion = p.get(unrestrictedVersionKey());
+          Response<String> sharedVersion = p.get(sharedVersionKey());
+          p.sync();
 
-    RawUserPermission rawUnrestricted = new RawUserPermission(responseTable.row(UNRESTRICTED));
-    UserPermission unrestrictedUser = getUserPermission(UNRESTRICTED, rawUnrestricted);
-    Set<String> adminSet = getAllAdmins();
+          if (!isUserInRepo.get()) {
+            return Optional.empty();
+          }
+
+          SharedResourceSnapshot shared = getSharedResources(sharedVersion.get());
+          UserPermission unrestrictedUser = getUnrestrictedUser(unrestrictedVersion.get(), shared);
+
+          Map<byte[], byte[]> resourceMap;
+          if (resourceName == null) {
+            resourceMap = resources.get();
+          } else if (resource.get() == null) {
+            resourceMap = Collections.emptyMap();
+          } else {
+            resourceMap =
+                Collections.singletonMap(SafeEncoder.encode(resourceName), resource.get());
+          }
+
+          UserPermission permission =
+              new UserPermission()
+                  .setId(id)
+                  .setAdmin(admin.get())
+                  .addResources(extractResources(ResourceType.ROLE, roles.get(), shared))
+                  .addResources(extractResources(resourceType, resourceMap, shared));
+          unrestrictedUser.getAllResources().stream()
+              .filter(r -> r.getResourceType() == resourceType)
+              .filter(r -> resourceName == null || resourceName.equals(r.getName()))
+              .forEach(permission::addResource);
+          return Optional.of(permission);
+        });
+  }
 
-    for (String userId : responseTable.rowKeySet()) {
-      RawUserPermission rawUser = new RawUserPermission(responseTable.row(userId));
-      rawUser.isAdmin = adminSet.contains(userId);
-      UserPermission permission = getUserPermission(userId, rawUser);
-      allById.put(userId, permission.merge(unrestrictedUser));
+  /**
+   * Returns the unrestricted user as of the given version, reloading it only if the in-memory
+   * snapshot is of a different version or was resolved against other shared resources. Unversioned
+   * data (i.e. written before versions were tracked) is never cached.
+   */
+  private UserPermission getUnrestrictedUser(String version, SharedResourceSnapshot shared) {
+    UnrestrictedSnapshot snapshot = unrestrictedSnapshot.get();
+    if (version != null
+        && snapshot != null
+        && version.equals(snapshot.version)
+        && shared == snapshot.shared) {
+      return snapshot.permission;
+    }
+
+    UserPermission unrestrictedUser =
+        redisClientDelegate.withMultiKeyPipeline(
+            p -> {
+              RawUserPermission unrestrictedResponseMap = new RawUserPermission();
+              for (ResourceType r : ResourceType.values()) {
+                unrestrictedResponseMap.put(
+                    r, p.hgetAll(SafeEncoder.encode(unrestrictedUserKey(r))));
+              }
+              p.sync();
+              return getUserPermission(UNRESTRICTED, unrestrictedResponseMap, shared);
+            });
+    if (version != null) {
+      unrestrictedSnapshot.set(new UnrestrictedSnapshot(version, shared, unrestrictedUser));
+    }
+    return unrestrictedUser;
+  }
+
+  /**
+   * Returns the shared resources as of the given version, reloading them only if the in-memory
+   * snapshot is of a different version. No version means nothing has been written normalized.
+   */
+  private SharedResourceSnapshot getSharedResources(String version) {
+    SharedResourceSnapshot snapshot = sharedSnapshot.get();
+    if (version == null || version.equals(snapshot.version)) {
+      return version == null ? SharedResourceSnapshot.EMPTY : snapshot;
+    }
+
+    Map<ResourceType, Map<String, Resource>> resources = new EnumMap<>(ResourceType.class);
+    Map<ResourceType, Map<byte[], byte[]>> bodies =
+        redisClientDelegate.withMultiKeyPipeline(
+            p -> {
+              Map<ResourceType, Response<Map<byte[], byte[]>>> responses =
+                  new EnumMap<>(ResourceType.class);
+              for (ResourceType r : SHARED_TYPES) {
+                responses.put(r, p.hgetAll(SafeEncoder.encode(sharedKey(r))));
+              }
+              p.sync();
+              Map<ResourceType, Map<byte[], byte[]>> result = new EnumMap<>(ResourceType.class);
+              responses.forEach((r, response) -> result.put(r, response.get()));
+              return result;
+            });
+
+    bodies.forEach(
+        (r, resourceMap) -> {
+          Map<String, Resource> byName = new HashMap<>(resourceMap.size());
+          resourceMap.forEach(
+              (rawName, body) -> {
+                String name = SafeEncoder.encode(rawName);
+                try {
+                  byName.put(name, resourceCodec.decode(body, r.modelClass));
+                } catch (IOException ioe) {
+                  log.error("Serialization exception reading shared " + r + " " + name, ioe);
+                }
+              });
+          resources.put(r, byName);
+        });
+
+    SharedResourceSnapshot loaded = new SharedResourceSnapshot(version, resources);
+    sharedSnapshot.set(loaded);
+    return loaded;
+  }
+
+  /** Reads the shared resources as of their current version. */
+  private SharedResourceSnapshot getSharedResources() {
+    return getSharedResources(
+        redisClientDelegate.withCommandsClient(c -> c.get(sharedVersionKey())));
+  }
+
+  @Override
+  public Map<String, UserPermission> getAllById() {
+    try {
+      return getAllFromRedis(scanSet(allUsersKey()));
+    } catch (Exception e) {
+      log.error("Storage exception reading all entries.", e);
+      return new HashMap<>(0);
+    }
+  }
+
+  @Override
+  public void forEachUser(@NonNull Consumer<UserPermission> consumer) {
+    try {
+      forEachFromRedis(scanSet(allUsersKey()), consumer);
+    } catch (Exception e) {
+      log.error("Storage exception reading all entries.", e);
     }
-    return allById;
   }
 
   @Override
@@ -223,100 +894,246 @@ public class RedisPermissionsRepository implements PermissionsRepository {
     }
     dedupedUsernames.add(UNRESTRICTED);
 
-    Table<String, ResourceType, Response<Map<String, String>>> responseTable =
-        getAllFromRedis(dedupedUsernames);
-    if (responseTable == null) {
+    try {
+      return getAllFromRedis(dedupedUsernames);
+    } catch (Exception e) {
+      log.error("Storage exception reading all entries.", e);
       return new HashMap<>(0);
     }
-
-    RawUserPermission rawUnrestricted = new RawUserPermission(responseTable.row(UNRESTRICTED));
-    UserPermission unrestrictedUser = getUserPermission(UNRESTRICTED, rawUnrestricted);
-    Set<String> adminSet = getAllAdmins();
-
-    return dedupedUsernames.stream()
-        .map(
-            userId -> {
-              RawUserPermission rawUser = new RawUserPermission(responseTable.row(userId));
-              rawUser.isAdmin = adminSet.contains(userId);
-              return getUserPermission(userId, rawUser);
-            })
-        .collect(
-            Collectors.toMap(
-                UserPermission::getId, permission -> permission.merge(unrestrictedUser)));
   }
 
-  private UserPermission getUserPermission(String userId, RawUserPermission raw) {
+  private UserPermission getUserPermission(
+      String userId, RawUserPermission raw, SharedResourceSnapshot shared) {
 
     UserPermission permission = new UserPermission().setId(userId);
 
-    for (Map.Entry<ResourceType, Response<Map<String, String>>> entry : raw.entrySet()) {
+    for (Map.Entry<ResourceType, Response<Map<byte[], byte[]>>> entry : raw.entrySet()) {
       ResourceType r = entry.getKey();
 
-      Map<String /*resourceName*/, String /*resource json*/> resourceMap = entry.getValue().get();
-      permission.addResources(extractResources(r, resourceMap));
+      Map<byte[] /*resourceName*/, byte[] /*encoded resource*/> resourceMap =
+          entry.getValue().get();
+      permission.addResources(extractResources(r, resourceMap, shared));
     }
     permission.setAdmin(raw.isAdmin);
 
     return permission;
   }
 
-  private Table<String, ResourceType, Response<Map<String, String>>> getAllFromRedis() {
+  private Map<String, UserPermission> getAllFromRedis(Set<String> userIds) {
+    Map<String, UserPermission> allById = new HashMap<>(userIds.size());
+    forEachFromRedis(userIds, permission -> allById.put(permission.getId(), permission));
+    return allById;
+  }
+
+  /**
+   * Passes each of the given users, merged with the unrestricted user, to the consumer. Users are
+   * read in pipelined batches by up to {@code fiat.redis.repository.readThreads} threads, and each
+   * batch is decoded as soon as it completes. Batches are sized from the responses of the previous
+   * one, aiming for {@code fiat.redis.repository.readBatchTargetBytes} per pipeline.
+   *
+   * <p>The consumer is only called from the calling thread. Readers block once a few decoded
+   * batches are waiting for it, so at most that many users are held in memory at a time.
+   */
+  private void forEachFromRedis(Set<String> userIds, Consumer<UserPermission> consumer) {
+    if (userIds.isEmpty()) {
+      return;
+    }
+
+    SharedResourceSnapshot shared = getSharedResources();
+    Set<String> adminSet = getAllAdmins();
+    UserPermission unrestrictedUser =
+        getUnrestrictedUser(
+            redisClientDelegate.withCommandsClient(c -> c.get(unrestrictedVersionKey())), shared);
+
+    Queue<String> remaining = new ConcurrentLinkedQueue<>(userIds);
+    AtomicInteger batchSize = new AtomicInteger(INITIAL_READ_BATCH_SIZE);
+    Consumer<Consumer<List<UserPermission>>> reader =
+        batches -> {
+          List<String> batch;
+          while (!(batch = poll(remaining, batchSize.get())).isEmpty()) {
+            List<UserPermission> permissions = new ArrayList<>(batch.size());
+            long bytes =
+                readBatch(
+                    batch, shared, adminSet, p -> permissions.add(p.merge(unrestrictedUser)));
+            batchSize.set(nextReadBatchSize(bytes, batch.size()));
+            batches.accept(permissions);
+          }
+        };
+
+    if (readThreads <= 1 || userIds.size() <= INITIAL_READ_BATCH_SIZE) {
+      reader.accept(permissions -> permissions.forEach(consumer));
+      return;
+    }
+
+    BlockingQueue<List<UserPermission>> decoded = new ArrayBlockingQueue<>(readThreads * 2);
+    AtomicReference<RuntimeException> failure = new AtomicReference<>();
+    List<Future<?>> readers = new ArrayList<>(readThreads);
     try {
-      Set<String> allUsers = scanSet(allUsersKey());
-      return getAllFromRedis(allUsers);
-    } catch (Exception e) {
-      log.error("Storage exception reading all entries.", e);
-      return null;
+      for (int i = 0; i < readThreads; i++) {
+        readers.add(
+            readExecutor.submit(
+                () -> {
+                  try {
+                    reader.accept(permissions -> enqueue(decoded, permissions));
+                  } catch (RuntimeException e) {
+                    failure.compareAndSet(null, e);
+                  } finally {
+                    enqueue(decoded, END_OF_READS);
+                  }
+                }));
+      }
+
+      int running = readThreads;
+      while (running > 0) {
+        List<UserPermission> permissions = decoded.take();
+        if (permissions == END_OF_READS) {
+          running--;
+        } else {
+          permissions.forEach(consumer);
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted waiting for redis reads.", e);
+    } finally {
+      // stops readers still blocked handing off batches, if the consumer failed.
+      readers.forEach(future -> future.cancel(true));
+    }
+
+    if (failure.get() != null) {
+      throw failure.get();
+    }
+  }
+
+  private static void enqueue(
+      BlockingQueue<List<UserPermission>> queue, List<UserPermission> permissions) {
+    try {
+      queue.put(permissions);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted handing off redis reads.", e);
+    }
+  }
+
+  /**
+   * Reads and decodes a batch of users, passing each to {@code decoded}.
+   *
+   * @return the size of the responses read, in bytes
+   */
+  private long readBatch(
+      List<String> userIds,
+      SharedResourceSnapshot shared,
+      Set<String> adminSet,
+      Consumer<UserPermission> decoded) {
+    Map<String, RawUserPermission> rawUsers = new HashMap<>(userIds.size());
+    redisClientDelegate.withMultiKeyPipeline(
+        p -> {
+          for (String userId : userIds) {
+            RawUserPermission rawUser = new RawUserPermission();
+            for (ResourceType r : ResourceType.values()) {
+              rawUser.put(r, p.hgetAll(SafeEncoder.encode(userKey(userId, r))));
+            }
+            rawUser.isAdmin = adminSet.contains(userId);
+            rawUsers.put(userId, rawUser);
+          }
+          p.sync();
+        });
+
+    long bytes = 0;
+    for (Map.Entry<String, RawUserPermission> entry : rawUsers.entrySet()) {
+      for (Response<Map<byte[], byte[]>> response : entry.getValue().values()) {
+        for (Map.Entry<byte[], byte[]> field : response.get().entrySet()) {
+          bytes += field.getKey().length + field.getValue().length;
+        }
+      }
+      decoded.accept(getUserPermission(entry.getKey(), entry.getValue(), shared));
+    }
+    return bytes;
+  }
+
+  private int nextReadBatchSize(long bytes, int users) {
+    long bytesPerUser = Math.max(1, bytes / users);
+    return (int) Math.max(1, Math.min(MAX_READ_BATCH_SIZE, readBatchTargetBytes / bytesPerUser));
+  }
+
+  private static List<String> poll(Queue<String> queue, int max) {
+    List<String> polled = new ArrayList<>(max);
+    String next;
+    while (polled.size() < max && (next = queue.poll()) != null) {
+      polled.add(next);
     }
+    return polled;
   }
 
-  private Table<String, ResourceType, Response<Map<String, String>>> getAllFromRedis(
-      Set<String> userIds) {
-    if (userIds.size() == 0) {
-      return HashBasedTable.create();
+  /**
+   * Runs the tasks on the calling thread and up to {@code threads - 1} threads of the executor,
+   * rethrowing the first failure. As the caller works through the tasks too, they complete even if
+   * every thread of the executor is taken, e.g. by the readers of a forEachUser whose consumer
+   * reads more users.
+   */
+  private static void runConcurrently(List<Runnable> tasks, int threads, ExecutorService executor) {
+    if (tasks.size() <= 1 || threads <= 1) {
+      tasks.forEach(Runnable::run);
+      return;
     }
 
+    Queue<Runnable> remaining = new ConcurrentLinkedQueue<>(tasks);
+    Runnable worker =
+        () -> {
+          Runnable task;
+          while ((task = remaining.poll()) != null) {
+            task.run();
+          }
+        };
+    List<Future<?>> workers = new ArrayList<>(threads - 1);
     try {
-      final Table<String, ResourceType, Response<Map<String, String>>> responseTable =
-          ArrayTable.create(userIds, new ArrayIterator<>(ResourceType.values()));
-      for (List<String> userIdSubset : Lists.partition(new ArrayList<>(userIds), 10)) {
-        redisClientDelegate.withMultiKeyPipeline(
-            p -> {
-              for (String userId : userIdSubset) {
-                for (ResourceType r : ResourceType.values()) {
-                  responseTable.put(userId, r, p.hgetAll(userKey(userId, r)));
-                }
-              }
-              p.sync();
-            });
+      for (int i = 1; i < Math.min(threads, tasks.size()); i++) {
+        workers.add(executor.submit(worker));
       }
-      return responseTable;
-    } catch (Exception e) {
-      log.error("Storage exception reading all entries.", e);
+      worker.run();
+      for (Future<?> future : workers) {
+        // workers that never started have nothing left to do
+        if (!future.cancel(false)) {
+          future.get();
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted waiting for redis operations.", e);
+    } catch (ExecutionException e) {
+      Throwables.throwIfUnchecked(e.getCause());
+      throw new RuntimeException(e.getCause());
+    } finally {
+      remaining.clear();
+      workers.forEach(future -> future.cancel(true));
     }
-    return null;
   }
 
   @Override
   public void remove(@NonNull String id) {
     try {
-      Map<String, String> userRolesById =
+      Set<String> userRoleNames =
           redisClientDelegate.withCommandsClient(
               jedis -> {
-                return jedis.hgetAll(userKey(id, ResourceType.ROLE));
+                return jedis.hkeys(userKey(id, ResourceType.ROLE));
               });
 
       redisClientDelegate.withMultiKeyPipeline(
           p -> {
             p.srem(allUsersKey(), id);
-            for (String roleName : userRolesById.keySet()) {
+            for (String roleName : userRoleNames) {
               p.srem(roleKey(roleName), id);
             }
 
             for (ResourceType r : ResourceType.values()) {
               p.del(userKey(id, r));
             }
+            p.hdel(digestsKey(), digestFields(id));
             p.srem(adminKey(), id);
+            if (UNRESTRICTED.equals(id)) {
+              p.incr(unrestrictedVersionKey());
+            }
+            queueRecordChanges(p, Collections.singletonList(id));
             p.sync();
           });
     } catch (Exception e) {
@@ -324,6 +1141,56 @@ public class RedisPermissionsRepository implements PermissionsRepository {
     }
   }
 
+  /** Queues recording that the given users changed, after their writes in the same pipeline. */
+  private void queueRecordChanges(Pipeline pipeline, List<String> userIds) {
+    List<String> args = new ArrayList<>(userIds.size() + 1);
+    args.add(String.valueOf(MAX_RECORDED_CHANGES));
+    args.addAll(userIds);
+    pipeline.eval(RECORD_CHANGES_SCRIPT, Arrays.asList(changesKey(), changesSequenceKey()), args);
+  }
+
+  @Override
+  public Optional<PermissionChanges> getChangesSince(Long sequence) {
+    try {
+      return Optional.of(
+          redisClientDelegate.withMultiKeyPipeline(
+              p -> {
+                // the sequence is read first: every change numbered up to it is already recorded.
+                Response<String> current = p.get(changesSequenceKey());
+                Response<Long> recorded = p.zcard(changesKey());
+                Response<Set<Tuple>> oldest = p.zrangeWithScores(changesKey(), 0, 0);
+                Response<Set<Tuple>> since =
+                    sequence == null
+                        ? null
+                        : p.zrangeByScoreWithScores(changesKey(), "(" + sequence, "+inf");
+                p.sync();
+
+                long currentSequence = current.get() == null ? 0 : Long.parseLong(current.get());
+                PermissionChanges changes = new PermissionChanges().setSequence(currentSequence);
+                if (sequence == null) {
+                  return changes;
+                }
+
+                boolean trimmed =
+                    recorded.get() >= MAX_RECORDED_CHANGES
+                        && oldest.get().stream().anyMatch(t -> t.getScore() > sequence + 1);
+                if (sequence > currentSequence || trimmed) {
+                  return changes.setReset(true);
+                }
+
+                for (Tuple change : since.get()) {
+                  if (change.getScore() <= currentSequence) {
+                    changes.getUserIds().add(change.getElement());
+                  }
+                }
+                return changes.setReset(changes.getUserIds().contains(UNRESTRICTED));
+              }));
+    } catch (Exception e) {
+      log.error("Storage exception reading changes since " + sequence + ".", e);
+      return Optional.empty();
+    }
+  }
+
   private Set<String> scanSet(String key) {
     final Set<String> results = new HashSet<>();
     final AtomicReference<String> cursor = new AtomicReference<>(ScanParams.SCAN_POINTER_START);
@@ -351,6 +1218,10 @@ public class RedisPermissionsRepository implements PermissionsRepository {
     return userKey(UNRESTRICTED, r);
   }
 
+  private String unrestrictedVersionKey() {
+    return String.format("%s:%s:%s:%s", prefix, KEY_PERMISSIONS, UNRESTRICTED, KEY_VERSION);
+  }
+
   private String userKey(String userId, ResourceType r) {
     return String.format("%s:%s:%s:%s", prefix, KEY_PERMISSIONS, userId, r.keySuffix());
   }
@@ -359,6 +1230,44 @@ public class RedisPermissionsRepository implements PermissionsRepository {
     return String.format("%s:%s:%s", prefix, KEY_PERMISSIONS, KEY_ADMIN);
   }
 
+  private String changesKey() {
+    return String.format("%s:%s:%s", prefix, KEY_PERMISSIONS, KEY_CHANGES);
+  }
+
+  private String changesSequenceKey() {
+    return String.format("%s:%s:%s:%s", prefix, KEY_PERMISSIONS, KEY_CHANGES, KEY_SEQUENCE);
+  }
+
+  private String sharedKey(ResourceType r) {
+    return String.format("%s:%s:%s", prefix, KEY_RESOURCES, r.keySuffix());
+  }
+
+  private String sharedVersionKey() {
+    return String.format("%s:%s:%s", prefix, KEY_RESOURCES, KEY_VERSION);
+  }
+
+  private String sharedDigestsKey() {
+    return String.format("%s:%s:%s", prefix, KEY_RESOURCES, KEY_DIGESTS);
+  }
+
+  private static String sharedField(ResourceType r, String name) {
+    return r.keySuffix() + ":" + name;
+  }
+
+  private String digestsKey() {
+    return String.format("%s:%s:%s", prefix, KEY_PERMISSIONS, KEY_DIGESTS);
+  }
+
+  private static String digestField(String userId, ResourceType r) {
+    return userId + ":" + r.keySuffix();
+  }
+
+  private static String[] digestFields(String userId) {
+    return Arrays.stream(ResourceType.values())
+        .map(r -> digestField(userId, r))
+        .toArray(String[]::new);
+  }
+
   private String roleKey(Role role) {
     return roleKey(role.getName());
   }
@@ -367,15 +1276,33 @@ public class RedisPermissionsRepository implements PermissionsRepository {
     return String.format("%s:%s:%s", prefix, KEY_ROLES, role);
   }
 
-  private Set<Resource> extractResources(ResourceType r, Map<String, String> resourceMap) {
-    return resourceMap.values().stream()
-        .map(
-            (ThrowingFunction<String, ? extends Resource>)
-                serialized -> objectMapper.readValue(serialized, r.modelClass))
-        .collect(Collectors.toSet());
+  private Set<Resource> extractResources(
+      ResourceType r, Map<byte[], byte[]> resourceMap, SharedResourceSnapshot shared) {
+    Set<Resource> resources = new HashSet<>(resourceMap.size());
+    resourceMap.forEach(
+        (rawName, value) -> {
+          if (!Arrays.equals(RESOURCE_REFERENCE, value)) {
+            resources.add(
+                ((ThrowingFunction<byte[], ? extends Resource>)
+                        serialized -> resourceCodec.decode(serialized, r.modelClass))
+                    .apply(value));
+            return;
+          }
+
+          String name = SafeEncoder.encode(rawName);
+          Resource resource = shared.get(r, name);
+          if (resource == null) {
+            // pruned, or written after the snapshot was loaded. Not worth another read per user.
+            danglingReferenceCounter.increment();
+            log.debug("Shared {} {} is referenced but not in the snapshot, skipping.", r, name);
+          } else {
+            resources.add(resource);
+          }
+        });
+    return resources;
   }
 
-  /** Used to swallow checked exceptions from Jackson methods. */
+  /** Used to swallow checked exceptions from codec methods. */
   @FunctionalInterface
   private interface ThrowingFunction<T, R> extends Function<T, R> {
 
@@ -391,16 +1318,93 @@ public class RedisPermissionsRepository implements PermissionsRepository {
     R applyThrows(T t) throws Exception;
   }
 
-  private class RawUserPermission extends HashMap<ResourceType, Response<Map<String, String>>> {
+  /** A user's encoded resources, and what is currently stored for them. */
+  private static class PendingWrite {
+    private final UserPermission permission;
+    private final String userId;
+    private final Map<ResourceType, Map<String, byte[]>> resourceTypeToRedisValue;
+    private final Map<ResourceType, String> digests;
+    private final List<ResourceType> changedTypes = new ArrayList<>(ResourceType.values().length);
+    private StoredState stored;
+
+    PendingWrite(
+        UserPermission permission,
+        Map<ResourceType, Map<String, byte[]>> resourceTypeToRedisValue,
+        Map<ResourceType, String> digests) {
+      this.permission = permission;
+      this.userId = permission.getId();
+      this.resourceTypeToRedisValue = resourceTypeToRedisValue;
+      this.digests = digests;
+    }
+  }
+
+  /** The encoded body of a shared resource, as referenced by the users being written. */
+  private static class SharedBody {
+    private final ResourceType type;
+    private final String name;
+    private final byte[] body;
+    private final String digest;
+
+    SharedBody(ResourceType type, String name, byte[] body) {
+      this.type = type;
+      this.name = name;
+      this.body = body;
+      this.digest = DIGEST_FUNCTION.hashBytes(body).toString();
+    }
+  }
+
+  private static class StoredState {
+    private final List<String> digests;
+    private final Map<byte[], byte[]> roles;
+    private final String version;
+
+    StoredState(List<String> digests, Map<byte[], byte[]> roles, String version) {
+      this.digests = digests;
+      this.roles = roles;
+      this.version = version;
+    }
+  }
+
+  /**
+   * The decoded unrestricted user, as of a given value of its version key and the shared resources
+   * it was resolved against.
+   */
+  private static class UnrestrictedSnapshot {
+    private final String version;
+    private final SharedResourceSnapshot shared;
+    private final UserPermission permission;
+
+    UnrestrictedSnapshot(String version, SharedResourceSnapshot shared, UserPermission permission) {
+      this.version = version;
+      this.shared = shared;
+      this.permission = permission;
+    }
+  }
+
+  /** The decoded shared resource tables, as of a given value of their version key. */
+  private static class SharedResourceSnapshot {
+    private static final SharedResourceSnapshot EMPTY =
+        new SharedResourceSnapshot(null, Collections.emptyMap());
+
+    private final String version;
+    private final Map<ResourceType, Map<String, Resource>> resources;
+
+    SharedResourceSnapshot(String version, Map<ResourceType, Map<String, Resource>> resources) {
+      this.version = version;
+      this.resources = resources;
+    }
+
+    Resource get(ResourceType r, String name) {
+      return resources.getOrDefault(r, Collections.emptyMap()).get(name);
+    }
+  }
+
+  private class RawUserPermission extends HashMap<ResourceType, Response<Map<byte[], byte[]>>> {
 
     private boolean isAdmin = false;
 
     RawUserPermission() {
       super();
     }
-
-    RawUserPermission(Map<ResourceType, Response<Map<String, String>>> source) {
-      super(source);
-    }
   }
 }
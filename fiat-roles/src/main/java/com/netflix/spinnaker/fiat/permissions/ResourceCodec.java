@@ -0,0 +1,32 @@
+/*
+ * Copyright 2020 Netflix, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.spinnaker.fiat.permissions;
+
+import com.netflix.spinnaker.fiat.model.resources.Resource;
+import java.io.IOException;
+
+/**
+ * Converts resources to and from the values stored in a {@link PermissionsRepository}.
+ * Implementations must be able to decode anything they (or a previously configured codec) have
+ * encoded, so that the configured encoding can be changed without rewriting existing data.
+ */
+public interface ResourceCodec {
+
+  byte[] encode(Resource resource) throws IOException;
+
+  <R extends Resource> R decode(byte[] value, Class<R> type) throws IOException;
+}
@@ -21,11 +21,20 @@ import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.netflix.spinnaker.fiat.config.ProviderCacheConfig;
+import com.netflix.spinnaker.fiat.model.resources.Permissions;
 import com.netflix.spinnaker.fiat.model.resources.Resource;
 import com.netflix.spinnaker.fiat.model.resources.Role;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
@@ -39,24 +48,99 @@ public abstract class BaseResourceProvider<R extends Resource> implements Resour
 
   private Cache<Integer, Set<R>> cache = buildCache(20);
 
+  /**
+   * The indexes of the resource sets in use, by set identity (weak keys compare by identity), kept
+   * while anything still holds the set: the cache of the current resources, or a snapshot.
+   */
+  private final Cache<Set<R>, RoleIndex<R>> roleIndexes =
+      CacheBuilder.newBuilder().weakKeys().build();
+
+  /** The resources last loaded, kept as long as reloads load the same resources again. */
+  private volatile Set<R> lastLoaded;
+
   @Override
-  @SuppressWarnings("unchecked")
   public Set<R> getAllRestricted(@NonNull Set<Role> roles, boolean isAdmin)
       throws ProviderException {
-    return (Set<R>)
-        getAll().stream()
-            .filter(resource -> resource instanceof Resource.AccessControlled)
-            .map(resource -> (Resource.AccessControlled) resource)
-            .filter(resource -> resource.getPermissions().isRestricted())
-            .filter(resource -> resource.getPermissions().isAuthorized(roles) || isAdmin)
-            .collect(Collectors.toSet());
+    return getAllRestricted(ResourceSnapshot.LIVE, roles, isAdmin);
+  }
+
+  @Override
+  public Set<R> getAllRestricted(
+      @NonNull ResourceSnapshot snapshot, @NonNull Set<Role> roles, boolean isAdmin)
+      throws ProviderException {
+    RoleIndex<R> index = getRoleIndex(snapshot.get(this));
+    return isAdmin ? index.all : index.getAll(roles);
+  }
+
+  /**
+   * @return the (lower-case) names of the roles granted some access to the given resource, or an
+   *     empty collection if it is not restricted
+   */
+  protected Collection<String> getIndexedRoles(R resource) {
+    if (resource instanceof Resource.AccessControlled) {
+      Permissions permissions = ((Resource.AccessControlled) resource).getPermissions();
+      if (permissions.isRestricted()) {
+        return permissions.allGroups();
+      }
+    }
+    return Collections.emptySet();
+  }
+
+  /**
+   * Returns the index of the given resources by the roles given by {@link #getIndexedRoles},
+   * building it once per set of resources loaded rather than matching every resource against the
+   * roles of every user. Syncs and requests may use different sets at the same time, so each keeps
+   * its own index.
+   */
+  protected RoleIndex<R> getRoleIndex(Set<R> resources) {
+    RoleIndex<R> index = roleIndexes.getIfPresent(resources);
+    if (index == null) {
+      // indexing the same set twice when racing is harmless
+      index = new RoleIndex<>(resources, this::getIndexedRoles);
+      roleIndexes.put(resources, index);
+    }
+    return index;
+  }
+
+  /** Holds no reference to the indexed set itself, so that it can be collected while indexed. */
+  protected static class RoleIndex<R> {
+    /** The resources with any indexed role. */
+    final Set<R> all;
+
+    private final Map<String, List<R>> byRole = new HashMap<>();
+
+    RoleIndex(Set<R> resources, Function<R, Collection<String>> rolesOf) {
+      ImmutableSet.Builder<R> all = ImmutableSet.builder();
+      for (R resource : resources) {
+        Collection<String> roles = rolesOf.apply(resource);
+        if (!roles.isEmpty()) {
+          all.add(resource);
+          roles.forEach(role -> byRole.computeIfAbsent(role, r -> new ArrayList<>()).add(resource));
+        }
+      }
+      this.all = all.build();
+    }
+
+    /** @return the resources any of the given roles is indexed for */
+    Set<R> getAll(Set<Role> roles) {
+      Set<R> result = new HashSet<>();
+      for (Role role : roles) {
+        result.addAll(byRole.getOrDefault(role.getName(), Collections.emptyList()));
+      }
+      return result;
+    }
   }
 
   @Override
-  @SuppressWarnings("unchecked")
   public Set<R> getAllUnrestricted() throws ProviderException {
+    return getAllUnrestricted(ResourceSnapshot.LIVE);
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public Set<R> getAllUnrestricted(@NonNull ResourceSnapshot snapshot) throws ProviderException {
     return (Set<R>)
-        getAll().stream()
+        snapshot.get(this).stream()
             .filter(resource -> resource instanceof Resource.AccessControlled)
             .map(resource -> (Resource.AccessControlled) resource)
             .filter(resource -> !resource.getPermissions().isRestricted())
@@ -66,7 +150,8 @@ public abstract class BaseResourceProvider<R extends Resource> implements Resour
   @Override
   public Set<R> getAll() throws ProviderException {
     try {
-      return ImmutableSet.copyOf(cache.get(CACHE_KEY, this::loadAll));
+      // cached as an immutable set, so the same instance is returned until the resources change
+      return ImmutableSet.copyOf(cache.get(CACHE_KEY, this::loadImmutable));
     } catch (ExecutionException | UncheckedExecutionException e) {
       if (e.getCause() instanceof ProviderException) {
         throw (ProviderException) e.getCause();
@@ -89,10 +174,20 @@ public abstract class BaseResourceProvider<R extends Resource> implements Resour
 
   @Scheduled(fixedRateString = "${fiat.cache.refresh-interval:PT15S}")
   public void reloadCache() {
-    Set<R> data = loadAll();
+    Set<R> data = loadImmutable();
     cache.put(CACHE_KEY, data);
   }
 
+  private Set<R> loadImmutable() {
+    Set<R> loaded = ImmutableSet.copyOf(loadAll());
+    Set<R> last = lastLoaded;
+    if (loaded.equals(last)) {
+      return last;
+    }
+    lastLoaded = loaded;
+    return loaded;
+  }
+
   public void clearCache() {
     cache.invalidate(CACHE_KEY);
   }
@@ -58,14 +58,14 @@ public class DefaultApplicationResourceProvider extends BaseResourceProvider<App
   }
 
   @Override
-  public Set<Application> getAllRestricted(Set<Role> roles, boolean isAdmin)
-      throws ProviderException {
-    return getAllApplications(roles, isAdmin, true);
+  public Set<Application> getAllRestricted(
+      ResourceSnapshot snapshot, Set<Role> roles, boolean isAdmin) throws ProviderException {
+    return getAllApplications(snapshot, roles, isAdmin, true);
   }
 
   @Override
-  public Set<Application> getAllUnrestricted() throws ProviderException {
-    return getAllApplications(Collections.emptySet(), false, false);
+  public Set<Application> getAllUnrestricted(ResourceSnapshot snapshot) throws ProviderException {
+    return getAllApplications(snapshot, Collections.emptySet(), false, false);
   }
 
   @Override
@@ -115,7 +115,7 @@ public class DefaultApplicationResourceProvider extends BaseResourceProvider<App
   }
 
   private Set<Application> getAllApplications(
-      Set<Role> roles, boolean isAdmin, boolean isRestricted) {
+      ResourceSnapshot snapshot, Set<Role> roles, boolean isAdmin, boolean isRestricted) {
     if (allowAccessToUnknownApplications) {
       /*
        * By default, the `BaseProvider` parent methods will filter out any applications that the authenticated user does
@@ -127,9 +127,11 @@ public class DefaultApplicationResourceProvider extends BaseResourceProvider<App
        * In this case, it is appropriate to just return all applications and allow the subsequent authorization checks
        * to determine whether read, write or nothing should be granted.
        */
-      return getAll();
+      return snapshot.get(this);
     }
 
-    return isRestricted ? super.getAllRestricted(roles, isAdmin) : super.getAllUnrestricted();
+    return isRestricted
+        ? super.getAllRestricted(snapshot, roles, isAdmin)
+        : super.getAllUnrestricted(snapshot);
   }
 }
@@ -20,11 +20,10 @@ import com.netflix.spinnaker.fiat.config.FiatRoleConfig;
 import com.netflix.spinnaker.fiat.model.resources.Role;
 import com.netflix.spinnaker.fiat.model.resources.ServiceAccount;
 import com.netflix.spinnaker.fiat.providers.internal.Front50Service;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
-import java.util.List;
 import java.util.Set;
-import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
@@ -58,29 +57,36 @@ public class DefaultServiceAccountResourceProvider extends BaseResourceProvider<
   }
 
   @Override
-  public Set<ServiceAccount> getAllRestricted(@NonNull Set<Role> roles, boolean isAdmin)
+  public Set<ServiceAccount> getAllRestricted(
+      @NonNull ResourceSnapshot snapshot, @NonNull Set<Role> roles, boolean isAdmin)
       throws ProviderException {
-    List<String> roleNames = roles.stream().map(Role::getName).collect(Collectors.toList());
-    return getAll().stream()
-        .filter(svcAcct -> !svcAcct.getMemberOf().isEmpty())
-        .filter(getServiceAccountPredicate(isAdmin, roleNames))
-        .collect(Collectors.toSet());
-  }
-
-  private Predicate<ServiceAccount> getServiceAccountPredicate(
-      boolean isAdmin, List<String> roleNames) {
+    RoleIndex<ServiceAccount> index = getRoleIndex(snapshot.get(this));
     if (isAdmin) {
-      return svcAcct -> true;
+      return index.all;
     }
-    if (fiatRoleConfig.isOrMode()) {
-      return svcAcct -> svcAcct.getMemberOf().stream().anyMatch(roleNames::contains);
-    } else {
-      return svcAcct -> roleNames.containsAll(svcAcct.getMemberOf());
+
+    // those sharing any role with the user, who must have all of their roles unless in OR mode
+    Set<ServiceAccount> serviceAccounts = index.getAll(roles);
+    if (!fiatRoleConfig.isOrMode()) {
+      Set<String> roleNames = roles.stream().map(Role::getName).collect(Collectors.toSet());
+      serviceAccounts.removeIf(svcAcct -> !roleNames.containsAll(svcAcct.getMemberOf()));
     }
+    return serviceAccounts;
+  }
+
+  @Override
+  protected Collection<String> getIndexedRoles(ServiceAccount serviceAccount) {
+    return serviceAccount.getMemberOf();
   }
 
   @Override
   public Set<ServiceAccount> getAllUnrestricted() throws ProviderException {
     return Collections.emptySet();
   }
+
+  @Override
+  public Set<ServiceAccount> getAllUnrestricted(@NonNull ResourceSnapshot snapshot)
+      throws ProviderException {
+    return Collections.emptySet();
+  }
 }
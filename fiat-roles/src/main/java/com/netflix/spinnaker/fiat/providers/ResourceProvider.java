@@ -28,5 +28,16 @@ public interface ResourceProvider<R extends Resource> {
 
   Set<R> getAllUnrestricted() throws ProviderException;
 
+  /** Like {@link #getAllRestricted(Set, boolean)}, of this provider's resources in the snapshot. */
+  default Set<R> getAllRestricted(ResourceSnapshot snapshot, Set<Role> roles, boolean isAdmin)
+      throws ProviderException {
+    return getAllRestricted(roles, isAdmin);
+  }
+
+  /** Like {@link #getAllUnrestricted()}, of this provider's resources in the snapshot. */
+  default Set<R> getAllUnrestricted(ResourceSnapshot snapshot) throws ProviderException {
+    return getAllUnrestricted();
+  }
+
   void clearCache();
 }
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2020 Netflix, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.spinnaker.fiat.providers;
+
+import com.netflix.spinnaker.fiat.model.resources.Resource;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import javax.annotation.Nullable;
+
+/**
+ * The resources of a number of providers as of a single point in time. Resolving all users of a
+ * sync against one snapshot keeps them consistent, even if providers reload their resources while
+ * the sync is running, and loads each provider's resources only once.
+ *
+ * <p>Snapshots are versioned: a snapshot taken after another is that same snapshot if none of the
+ * providers reloaded different resources in between, and has a greater version otherwise.
+ */
+public final class ResourceSnapshot {
+
+  /** Has no resources of its own, so that the providers' current resources are used instead. */
+  public static final ResourceSnapshot LIVE = new ResourceSnapshot(0, Collections.emptyMap());
+
+  private final long version;
+  private final Map<ResourceProvider<?>, Set<? extends Resource>> resources;
+
+  /** Values computed from the resources of this snapshot, by key. */
+  private final Map<Object, Object> memos = new ConcurrentHashMap<>();
+
+  private ResourceSnapshot(
+      long version, Map<ResourceProvider<?>, Set<? extends Resource>> resources) {
+    this.version = version;
+    this.resources = resources;
+  }
+
+  /**
+   * Takes a snapshot of the current resources of the given providers.
+   *
+   * @param previous the last snapshot taken of the same providers, if any, to version this one by.
+   *     It is returned itself if the resources are unchanged, keeping what was memoized in it.
+   */
+  public static ResourceSnapshot take(
+      Collection<? extends ResourceProvider<? extends Resource>> providers,
+      @Nullable ResourceSnapshot previous)
+      throws ProviderException {
+    Map<ResourceProvider<?>, Set<? extends Resource>> resources = new IdentityHashMap<>();
+    for (ResourceProvider<? extends Resource> provider : providers) {
+      Set<? extends Resource> providerResources = provider.getAll();
+      if (providerResources != null) {
+        resources.put(provider, providerResources);
+      }
+    }
+
+    if (previous == null) {
+      return new ResourceSnapshot(1, resources);
+    }
+
+    // providers keep returning the same set until their resources change
+    boolean changed =
+        previous.resources.size() != resources.size()
+            || resources.entrySet().stream()
+                .anyMatch(entry -> previous.resources.get(entry.getKey()) != entry.getValue());
+    return changed ? new ResourceSnapshot(previous.version + 1, resources) : previous;
+  }
+
+  public long getVersion() {
+    return version;
+  }
+
+  /**
+   * @return the resources of the given provider in this snapshot, or its current resources if it
+   *     isn't part of the snapshot
+   */
+  @SuppressWarnings("unchecked")
+  public <R extends Resource> Set<R> get(ResourceProvider<R> provider) throws ProviderException {
+    Set<R> providerResources = (Set<R>) resources.get(provider);
+    return providerResources != null ? providerResources : provider.getAll();
+  }
+
+  /**
+   * Returns the value kept under the given key, creating it on first use, so that everything
+   * resolved against this snapshot (like the batches of a sync) can share values computed from its
+   * resources. Nothing is kept for {@link #LIVE}, as its resources change.
+   */
+  @SuppressWarnings("unchecked")
+  public <T> T memo(Object key, Supplier<T> supplier) {
+    if (this == LIVE) {
+      return supplier.get();
+    }
+    return (T) memos.computeIfAbsent(key, k -> supplier.get());
+  }
+
+  /** Passes every resource of the snapshot to the given consumer. */
+  public void forEach(Consumer<Resource> consumer) {
+    resources.values().forEach(providerResources -> providerResources.forEach(consumer));
+  }
+}
@@ -16,14 +16,17 @@
 
 package com.netflix.spinnaker.fiat.roles;
 
+import com.google.common.collect.Lists;
 import com.netflix.appinfo.InstanceInfo;
 import com.netflix.discovery.DiscoveryClient;
 import com.netflix.spectator.api.Gauge;
 import com.netflix.spectator.api.Id;
 import com.netflix.spectator.api.Registry;
+import com.netflix.spinnaker.fiat.config.FiatAdminConfig;
 import com.netflix.spinnaker.fiat.config.ResourceProvidersHealthIndicator;
 import com.netflix.spinnaker.fiat.config.UnrestrictedResourceConfig;
 import com.netflix.spinnaker.fiat.model.UserPermission;
+import com.netflix.spinnaker.fiat.model.resources.Resource;
 import com.netflix.spinnaker.fiat.model.resources.Role;
 import com.netflix.spinnaker.fiat.model.resources.ServiceAccount;
 import com.netflix.spinnaker.fiat.permissions.ExternalUser;
@@ -32,18 +35,29 @@ import com.netflix.spinnaker.fiat.permissions.PermissionsRepository;
 import com.netflix.spinnaker.fiat.permissions.PermissionsResolver;
 import com.netflix.spinnaker.fiat.providers.ProviderException;
 import com.netflix.spinnaker.fiat.providers.ResourceProvider;
+import com.netflix.spinnaker.fiat.providers.ResourceSnapshot;
 import com.netflix.spinnaker.kork.eureka.RemoteStatusChangedEvent;
 import com.netflix.spinnaker.kork.lock.LockManager;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 import lombok.extern.slf4j.Slf4j;
@@ -67,15 +81,26 @@ public class UserRolesSyncer implements ApplicationListener<RemoteStatusChangedE
   private final PermissionsRepository permissionsRepository;
   private final PermissionsResolver permissionsResolver;
   private final ResourceProvider<ServiceAccount> serviceAccountProvider;
+  private final List<ResourceProvider<? extends Resource>> resourceProviders;
+  private final FiatAdminConfig fiatAdminConfig;
   private final ResourceProvidersHealthIndicator healthIndicator;
 
   private final long retryIntervalMs;
   private final long syncDelayMs;
   private final long syncFailureDelayMs;
   private final long syncDelayTimeoutMs;
+  private final long incrementalSyncDelayMs;
+  private final int resolveThreads;
+  private final int resolveBatchSize;
 
   private final AtomicBoolean isEnabled;
 
+  /** Resources as of the last incremental sync. */
+  private final AtomicReference<ResourceSnapshot> incrementalSnapshot = new AtomicReference<>();
+
+  /** The last snapshot taken, which the next one is versioned against. */
+  private ResourceSnapshot latestSnapshot;
+
   private final Registry registry;
   private final Gauge userRolesSyncCount;
 
@@ -87,23 +112,33 @@ public class UserRolesSyncer implements ApplicationListener<RemoteStatusChangedE
       PermissionsRepository permissionsRepository,
       PermissionsResolver permissionsResolver,
       ResourceProvider<ServiceAccount> serviceAccountProvider,
+      List<ResourceProvider<? extends Resource>> resourceProviders,
+      FiatAdminConfig fiatAdminConfig,
       ResourceProvidersHealthIndicator healthIndicator,
       @Value("${fiat.write-mode.retry-interval-ms:10000}") long retryIntervalMs,
       @Value("${fiat.write-mode.sync-delay-ms:600000}") long syncDelayMs,
       @Value("${fiat.write-mode.sync-failure-delay-ms:600000}") long syncFailureDelayMs,
-      @Value("${fiat.write-mode.sync-delay-timeout-ms:30000}") long syncDelayTimeoutMs) {
+      @Value("${fiat.write-mode.sync-delay-timeout-ms:30000}") long syncDelayTimeoutMs,
+      @Value("${fiat.write-mode.incremental-sync-delay-ms:-1}") long incrementalSyncDelayMs,
+      @Value("${fiat.write-mode.resolve-threads:1}") int resolveThreads,
+      @Value("${fiat.write-mode.resolve-batch-size:1000}") int resolveBatchSize) {
     this.discoveryClient = discoveryClient;
 
     this.lockManager = lockManager;
     this.permissionsRepository = permissionsRepository;
     this.permissionsResolver = permissionsResolver;
     this.serviceAccountProvider = serviceAccountProvider;
+    this.resourceProviders = resourceProviders;
+    this.fiatAdminConfig = fiatAdminConfig;
     this.healthIndicator = healthIndicator;
 
     this.retryIntervalMs = retryIntervalMs;
     this.syncDelayMs = syncDelayMs;
     this.syncFailureDelayMs = syncFailureDelayMs;
     this.syncDelayTimeoutMs = syncDelayTimeoutMs;
+    this.incrementalSyncDelayMs = incrementalSyncDelayMs;
+    this.resolveThreads = resolveThreads;
+    this.resolveBatchSize = Math.max(1, resolveBatchSize);
 
     this.isEnabled =
         new AtomicBoolean(
@@ -139,16 +174,212 @@ public class UserRolesSyncer implements ApplicationListener<RemoteStatusChangedE
     lockManager.acquireLock(
         lockOptions,
         () -> {
-          try {
-            timeIt("syncTime", () -> userRolesSyncCount.set(this.syncAndReturn(new ArrayList<>())));
-          } catch (Exception e) {
-            log.error("User roles synchronization failed", e);
-            userRolesSyncCount.set(-1);
+          boolean synced =
+              runExclusively(
+                  () -> {
+                    try {
+                      timeIt(
+                          "syncTime",
+                          () -> userRolesSyncCount.set(this.syncAll(new ArrayList<>())));
+                    } catch (Exception e) {
+                      log.error("User roles synchronization failed", e);
+                      userRolesSyncCount.set(-1);
+                    }
+                  },
+                  syncDelayTimeoutMs);
+          if (!synced) {
+            log.warn("Skipped user roles synchronization, as another one did not finish in time");
           }
         });
   }
 
+  @Scheduled(fixedDelay = 5000L)
+  public void scheduleIncremental() {
+    if (incrementalSyncDelayMs < 0 || syncDelayMs < 0 || !isEnabled.get()) {
+      return;
+    }
+
+    LockManager.LockOptions lockOptions =
+        new LockManager.LockOptions()
+            .withLockName("Fiat.UserRolesSyncer.Incremental".toLowerCase())
+            .withMaximumLockDuration(Duration.ofMillis(incrementalSyncDelayMs + syncDelayTimeoutMs))
+            .withSuccessInterval(Duration.ofMillis(incrementalSyncDelayMs))
+            .withFailureInterval(Duration.ofMillis(incrementalSyncDelayMs));
+
+    // skips this tick rather than waiting if a full sync is running, as it covers any changes.
+    lockManager.acquireLock(
+        lockOptions,
+        () -> {
+          runExclusively(
+              () -> {
+                try {
+                  timeIt("incrementalSyncTime", this::syncChangedResources);
+                } catch (Exception e) {
+                  log.error("Incremental user roles synchronization failed", e);
+                }
+              },
+              0);
+        });
+  }
+
+  /**
+   * Runs a sync while holding the lock shared by full and incremental syncs, so that a sync of
+   * older resources can never finish after another one and overwrite its newer results. Waits up to
+   * {@code waitMs} for another sync to finish.
+   *
+   * @return whether the sync ran
+   */
+  private boolean runExclusively(Runnable sync, long waitMs) {
+    LockManager.LockOptions lockOptions =
+        new LockManager.LockOptions()
+            .withLockName("Fiat.UserRolesSyncer.Running".toLowerCase())
+            .withMaximumLockDuration(Duration.ofMillis(syncDelayMs + syncDelayTimeoutMs))
+            .withSuccessInterval(Duration.ZERO)
+            .withFailureInterval(Duration.ZERO);
+
+    long deadline = System.currentTimeMillis() + waitMs;
+    while (lockManager.acquireLock(lockOptions, sync).getLockStatus()
+        != LockManager.LockStatus.ACQUIRED) {
+      if (System.currentTimeMillis() >= deadline) {
+        return false;
+      }
+      try {
+        Thread.sleep(retryIntervalMs);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Re-resolves only the users that may be affected by resources that changed since the last call:
+   * those in a role named by the old or new permissions of a changed resource, admins if any such
+   * resource is restricted, and the unrestricted user. The first call only records the resources
+   * to compare against, as the periodic full sync covers anything earlier.
+   *
+   * <p>Changes are picked up as the resource providers refresh their own caches, which are not
+   * cleared here so that frequent calls don't reload every provider each time.
+   *
+   * @return the number of users synced
+   */
+  public long syncChangedResources() {
+    ResourceSnapshot currentSnapshot = takeResourceSnapshot();
+    ResourceSnapshot previousSnapshot = incrementalSnapshot.get();
+    if (previousSnapshot == null) {
+      incrementalSnapshot.compareAndSet(null, currentSnapshot);
+      log.info("Recorded resources version {} for incremental sync.", currentSnapshot.getVersion());
+      return 0;
+    }
+    if (previousSnapshot.getVersion() == currentSnapshot.getVersion()) {
+      log.debug("Found no changed resources to sync.");
+      return 0;
+    }
+
+    // the changes are only recorded as synced once they are, so a failed sync is retried
+    OptionalLong synced = syncChanges(previousSnapshot, currentSnapshot);
+    if (synced.isPresent()) {
+      incrementalSnapshot.compareAndSet(previousSnapshot, currentSnapshot);
+    }
+    return synced.orElse(0);
+  }
+
+  /** @return the number of users synced, or nothing if the sync was aborted */
+  private OptionalLong syncChanges(
+      ResourceSnapshot previousSnapshot, ResourceSnapshot currentSnapshot) {
+
+    Map<String, Resource> current = byKey(currentSnapshot);
+    Map<String, Resource> previous = byKey(previousSnapshot);
+
+    Set<String> keys = new HashSet<>(previous.keySet());
+    keys.addAll(current.keySet());
+
+    Set<String> affectedRoles = new HashSet<>();
+    int changed = 0;
+    for (String key : keys) {
+      Resource before = previous.get(key);
+      Resource after = current.get(key);
+      if (Objects.equals(before, after)) {
+        continue;
+      }
+      changed++;
+      affectedRoles.addAll(rolesOf(before));
+      affectedRoles.addAll(rolesOf(after));
+    }
+
+    if (changed == 0) {
+      log.debug("Found no changed resources to sync.");
+      return OptionalLong.of(0);
+    }
+
+    if (affectedRoles.isEmpty()) {
+      log.info("Syncing anonymous user for {} changed unrestricted resources.", changed);
+      Map<String, UserPermission> unrestricted = new HashMap<>();
+      unrestricted.put(UnrestrictedResourceConfig.UNRESTRICTED_USERNAME, new UserPermission());
+      return OptionalLong.of(updateUserPermissions(unrestricted, currentSnapshot));
+    }
+
+    // admins are granted every restricted resource, regardless of its roles.
+    affectedRoles.addAll(fiatAdminConfig.getAdmin().getRoles());
+    log.info("Syncing roles {} for {} changed resources.", affectedRoles, changed);
+    return trySync(new ArrayList<>(affectedRoles));
+  }
+
+  /**
+   * Takes a snapshot of the resources of all providers, to resolve users against and to tell
+   * whether any resources changed since the previous one.
+   */
+  private synchronized ResourceSnapshot takeResourceSnapshot() {
+    latestSnapshot = ResourceSnapshot.take(resourceProviders, latestSnapshot);
+    return latestSnapshot;
+  }
+
+  private static Map<String, Resource> byKey(ResourceSnapshot snapshot) {
+    Map<String, Resource> resources = new HashMap<>();
+    snapshot.forEach(resource -> resources.put(snapshotKey(resource), resource));
+    return resources;
+  }
+
+  private static String snapshotKey(Resource resource) {
+    return resource.getResourceType() + ":" + resource.getName();
+  }
+
+  /** The roles whose members may be granted the resource. */
+  private static Set<String> rolesOf(Resource resource) {
+    if (resource instanceof ServiceAccount) {
+      List<String> memberOf = ((ServiceAccount) resource).getMemberOf();
+      return memberOf == null ? new HashSet<>() : new HashSet<>(memberOf);
+    }
+    if (resource instanceof Resource.AccessControlled) {
+      return ((Resource.AccessControlled) resource).getPermissions().allGroups();
+    }
+    return new HashSet<>();
+  }
+
+  /**
+   * Syncs the users in the given roles, or all users if none are given, once no scheduled sync is
+   * running, so that neither can overwrite the newer results of the other.
+   *
+   * @return the number of users synced, or 0 if the sync failed or another one did not finish in
+   *     time
+   */
   public long syncAndReturn(List<String> roles) {
+    AtomicLong count = new AtomicLong();
+    if (!runExclusively(() -> count.set(syncAll(roles)), syncDelayTimeoutMs)) {
+      log.warn("Skipped user roles synchronization, as another one did not finish in time");
+    }
+    return count.get();
+  }
+
+  private long syncAll(List<String> roles) {
+    // Ensure we're going to reload app and service account definitions
+    permissionsResolver.clearCache();
+    return trySync(roles).orElse(0);
+  }
+
+  /** @return the number of users synced, or nothing if the sync was aborted */
+  private OptionalLong trySync(List<String> roles) {
     FixedBackOff backoff = new FixedBackOff();
     backoff.setInterval(retryIntervalMs);
     backoff.setMaxAttempts(Math.floorDiv(syncDelayTimeoutMs, retryIntervalMs) + 1);
@@ -163,11 +394,10 @@ public class UserRolesSyncer implements ApplicationListener<RemoteStatusChangedE
               + "resolution may not complete until this server becomes healthy again.");
     }
 
-    // Ensure we're going to reload app and service account definitions
-    permissionsResolver.clearCache();
-
     while (true) {
       try {
+        // all users of this attempt are resolved against the same resources
+        ResourceSnapshot snapshot = takeResourceSnapshot();
         Map<String, UserPermission> combo = new HashMap<>();
         // force a refresh of the unrestricted user in case the backing repository is empty:
         combo.put(UnrestrictedResourceConfig.UNRESTRICTED_USERNAME, new UserPermission());
@@ -175,11 +405,15 @@ public class UserRolesSyncer implements ApplicationListener<RemoteStatusChangedE
         if (!(temp = getUserPermissions(roles)).isEmpty()) {
           combo.putAll(temp);
         }
-        if (!(temp = getServiceAccountsAsMap(roles)).isEmpty()) {
+        if (!(temp = getServiceAccountsAsMap(roles, snapshot)).isEmpty()) {
           combo.putAll(temp);
         }
 
-        return updateUserPermissions(combo);
+        long count = updateUserPermissions(combo, snapshot);
+        if (roles == null || roles.isEmpty()) {
+          pruneResources(snapshot);
+        }
+        return OptionalLong.of(count);
       } catch (ProviderException | PermissionResolutionException ex) {
         registry
             .counter(metricName("syncFailure"), "cause", ex.getClass().getSimpleName())
@@ -190,7 +424,7 @@ public class UserRolesSyncer implements ApplicationListener<RemoteStatusChangedE
           String cause = (waitTime == BackOffExecution.STOP) ? "backoff-exhausted" : "timeout";
           registry.counter("syncAborted", "cause", cause).increment();
           log.error("Unable to resolve service account permissions.", ex);
-          return 0;
+          return OptionalLong.empty();
         }
         String message =
             new StringBuilder("User permission sync failed. ")
@@ -217,13 +451,41 @@ public class UserRolesSyncer implements ApplicationListener<RemoteStatusChangedE
     }
   }
 
+  /**
+   * Prunes what the repository stores of resources that are neither in the snapshot every user was
+   * just synced against, nor in the latest one that users logging in may be resolved against.
+   */
+  private void pruneResources(ResourceSnapshot snapshot) {
+    List<Resource> currentResources = new ArrayList<>();
+    try {
+      ResourceSnapshot latest = takeResourceSnapshot();
+      for (ResourceProvider<? extends Resource> provider : resourceProviders) {
+        Set<? extends Resource> synced = snapshot.get(provider);
+        Set<? extends Resource> provided = latest.get(provider);
+        if (synced == null || provided == null) {
+          // nothing is known of what this provider provides, so nothing of it is pruned
+          return;
+        }
+        currentResources.addAll(synced);
+        if (provided != synced) {
+          currentResources.addAll(provided);
+        }
+      }
+    } catch (ProviderException e) {
+      log.warn("Skipped pruning resources, as their providers could not be read.", e);
+      return;
+    }
+    permissionsRepository.pruneResources(currentResources);
+  }
+
   private boolean isServerHealthy() {
     return healthIndicator.health().getStatus() == Status.UP;
   }
 
-  private Map<String, UserPermission> getServiceAccountsAsMap(List<String> roles) {
+  private Map<String, UserPermission> getServiceAccountsAsMap(
+      List<String> roles, ResourceSnapshot snapshot) {
     List<UserPermission> allServiceAccounts =
-        serviceAccountProvider.getAll().stream()
+        snapshot.get(serviceAccountProvider).stream()
             .map(ServiceAccount::toUserPermission)
             .collect(Collectors.toList());
     if (roles == null || roles.isEmpty()) {
@@ -238,18 +500,30 @@ public class UserRolesSyncer implements ApplicationListener<RemoteStatusChangedE
 
   private Map<String, UserPermission> getUserPermissions(List<String> roles) {
     if (roles == null || roles.isEmpty()) {
-      return permissionsRepository.getAllById();
+      // only ids and roles are needed to re-resolve users, so resources are dropped as they stream.
+      Map<String, UserPermission> userPermissions = new HashMap<>();
+      permissionsRepository.forEachUser(
+          permission ->
+              userPermissions.put(
+                  permission.getId(),
+                  new UserPermission().setId(permission.getId()).setRoles(permission.getRoles())));
+      return userPermissions;
     } else {
       return permissionsRepository.getAllByRoles(roles);
     }
   }
 
   public long updateUserPermissions(Map<String, UserPermission> permissionsById) {
+    return updateUserPermissions(permissionsById, takeResourceSnapshot());
+  }
+
+  private long updateUserPermissions(
+      Map<String, UserPermission> permissionsById, ResourceSnapshot snapshot) {
     if (permissionsById.remove(UnrestrictedResourceConfig.UNRESTRICTED_USERNAME) != null) {
       timeIt(
           "syncAnonymous",
           () -> {
-            permissionsRepository.put(permissionsResolver.resolveUnrestrictedUser());
+            permissionsRepository.put(permissionsResolver.resolveUnrestrictedUser(snapshot));
             log.info("Synced anonymous user role.");
           });
     }
@@ -275,14 +549,57 @@ public class UserRolesSyncer implements ApplicationListener<RemoteStatusChangedE
         timeIt(
             "syncUsers",
             () -> {
-              Collection<UserPermission> values = permissionsResolver.resolve(extUsers).values();
-              values.forEach(permissionsRepository::put);
-              return values.size();
+              if (resolveThreads > 1 && extUsers.size() > resolveBatchSize) {
+                return resolveAndPutInBatches(extUsers, snapshot);
+              }
+              return writeResolved(resolveUsers(extUsers, snapshot));
             });
     log.info("Synced {} non-anonymous user roles.", count);
     return count;
   }
 
+  /**
+   * Resolves the users in batches on {@code fiat.write-mode.resolve-threads} threads, writing each
+   * batch as soon as it is resolved while the following ones are still being resolved.
+   *
+   * @return the number of users written
+   */
+  private long resolveAndPutInBatches(List<ExternalUser> extUsers, ResourceSnapshot snapshot) {
+    ExecutorService resolvers = Executors.newFixedThreadPool(resolveThreads);
+    // the repository already spreads each write over its own threads
+    ExecutorService writer = Executors.newSingleThreadExecutor();
+    try {
+      List<CompletableFuture<Integer>> batches =
+          Lists.partition(extUsers, resolveBatchSize).stream()
+              .map(
+                  batch ->
+                      CompletableFuture.supplyAsync(
+                              () -> resolveUsers(new ArrayList<>(batch), snapshot), resolvers)
+                          .thenApplyAsync(this::writeResolved, writer))
+              .collect(Collectors.toList());
+      return batches.stream().mapToLong(CompletableFuture::join).sum();
+    } catch (CompletionException e) {
+      // rethrow resolution failures as such, so that the sync is retried
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    } finally {
+      resolvers.shutdownNow();
+      writer.shutdownNow();
+    }
+  }
+
+  private Collection<UserPermission> resolveUsers(
+      List<ExternalUser> extUsers, ResourceSnapshot snapshot) {
+    return timeIt("syncResolve", () -> permissionsResolver.resolve(extUsers, snapshot).values());
+  }
+
+  private int writeResolved(Collection<UserPermission> permissions) {
+    timeIt("syncWrite", () -> permissionsRepository.putAll(permissions));
+    return permissions.size();
+  }
+
   private static String metricName(String name) {
     return "fiat.userRoles." + name;
   }
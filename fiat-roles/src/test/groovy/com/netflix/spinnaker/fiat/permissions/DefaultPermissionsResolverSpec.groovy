@@ -17,6 +17,7 @@
 package com.netflix.spinnaker.fiat.permissions
 
 import com.fasterxml.jackson.databind.ObjectMapper
+import com.netflix.spectator.api.DefaultRegistry
 import com.netflix.spinnaker.fiat.config.FiatAdminConfig
 import com.netflix.spinnaker.fiat.config.FiatRoleConfig
 import com.netflix.spinnaker.fiat.model.Authorization
@@ -32,6 +33,7 @@ import com.netflix.spinnaker.fiat.providers.DefaultAccountResourceProvider
 import com.netflix.spinnaker.fiat.providers.DefaultServiceAccountResourceProvider
 import com.netflix.spinnaker.fiat.providers.ResourcePermissionProvider
 import com.netflix.spinnaker.fiat.providers.ResourceProvider
+import com.netflix.spinnaker.fiat.providers.ResourceSnapshot
 import com.netflix.spinnaker.fiat.providers.internal.ClouddriverService
 import com.netflix.spinnaker.fiat.providers.internal.Front50Service
 import com.netflix.spinnaker.fiat.roles.UserRolesProvider
@@ -290,4 +292,78 @@ class DefaultPermissionsResolverSpec extends Specification {
     result.remove("user1") == expectedUser1
     result.isEmpty()
   }
+
+  def "should resolve the resources of users sharing their roles only once per snapshot"() {
+    setup:
+    def registry = new DefaultRegistry()
+    ResourceProvider<Application> provider = Mock(ResourceProvider)
+    @Subject DefaultPermissionsResolver resolver = new DefaultPermissionsResolver(
+            userRolesProvider, serviceAccountProvider, [provider], new FiatAdminConfig(), new ObjectMapper())
+    resolver.setRegistry(registry)
+
+    def app = new Application().setName("app")
+    def snapshot = ResourceSnapshot.take([provider], null)
+    def distinctRoleSets = registry.distributionSummary("fiat.resolver.distinctRoleSets")
+
+    when: "the users of a sync are resolved in batches"
+    def first = resolver.resolve([new ExternalUser().setId("user1"),
+                                  new ExternalUser().setId("user2")], snapshot)
+    def second = resolver.resolve([new ExternalUser().setId("user3"),
+                                   new ExternalUser().setId("user4")], snapshot)
+
+    then:
+    2 * userRolesProvider.multiLoadRoles(_) >> [
+        user1: [new Role("group1"), new Role("group2")],
+        user2: [new Role("GROUP2"), new Role("group1")]
+    ] >> [
+        user3: [new Role("group2")],
+        user4: [new Role("group2"), new Role("group1")]
+    ]
+    1 * provider.getAllRestricted(_, [new Role("group1"), new Role("group2")] as Set, false) >> ([app] as Set)
+    1 * provider.getAllRestricted(_, [new Role("group2")] as Set, false) >> ([] as Set)
+    first.user1.applications == [app] as Set
+    first.user2.applications == [app] as Set
+    second.user3.applications.isEmpty()
+    second.user4.applications == [app] as Set
+    registry.counter("fiat.resolver.roleSets", "memoized", "true").count() == 2
+    registry.counter("fiat.resolver.roleSets", "memoized", "false").count() == 2
+    distinctRoleSets.count() == 0
+
+    when: "a later sync resolves them against another snapshot"
+    resolver.resolve([new ExternalUser().setId("user1")], ResourceSnapshot.take([provider], null))
+
+    then:
+    1 * userRolesProvider.multiLoadRoles(_) >> [user1: [new Role("group1"), new Role("group2")]]
+    1 * provider.getAllRestricted(_, [new Role("group1"), new Role("group2")] as Set, false) >> ([app] as Set)
+    distinctRoleSets.count() == 1
+    distinctRoleSets.totalAmount() == 2
+  }
+
+  def "should keep resolving users against the same snapshot until resources change"() {
+    setup:
+    ResourceProvider<Application> provider = Mock(ResourceProvider)
+    @Subject DefaultPermissionsResolver resolver = new DefaultPermissionsResolver(
+            userRolesProvider, serviceAccountProvider, [provider], new FiatAdminConfig(), new ObjectMapper())
+
+    def app = new Application().setName("app")
+    def apps = [app] as Set
+
+    when:
+    resolver.resolve([new ExternalUser().setId("user1")])
+    resolver.resolve([new ExternalUser().setId("user2")])
+
+    then: "both users share the resources resolved for their roles"
+    2 * provider.getAll() >> apps
+    2 * userRolesProvider.multiLoadRoles(_) >> [user1: [new Role("group1")]] >> [user2: [new Role("group1")]]
+    1 * provider.getAllRestricted(_, [new Role("group1")] as Set, false) >> apps
+
+    when: "the resources change"
+    def result = resolver.resolve([new ExternalUser().setId("user1")])
+
+    then:
+    1 * provider.getAll() >> ([app, new Application().setName("other")] as Set)
+    1 * userRolesProvider.multiLoadRoles(_) >> [user1: [new Role("group1")]]
+    1 * provider.getAllRestricted(_, [new Role("group1")] as Set, false) >> apps
+    result.user1.applications == apps
+  }
 }
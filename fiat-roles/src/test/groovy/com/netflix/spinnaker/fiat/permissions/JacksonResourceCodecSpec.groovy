@@ -0,0 +1,54 @@
+/*
+ * Copyright 2020 Netflix, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.spinnaker.fiat.permissions
+
+import com.fasterxml.jackson.annotation.JsonIgnore
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.fasterxml.jackson.databind.module.SimpleModule
+import com.fasterxml.jackson.dataformat.smile.SmileFactory
+import com.netflix.spinnaker.fiat.model.resources.Application
+import spock.lang.Specification
+import spock.lang.Unroll
+
+class JacksonResourceCodecSpec extends Specification {
+
+  @Unroll
+  def "should write #format with the modules of the given mapper"() {
+    setup:
+    def objectMapper = new ObjectMapper().registerModule(
+        new SimpleModule().setMixInAnnotation(Application, IgnoreDetails))
+    def codec = new JacksonResourceCodec(objectMapper, format)
+    def app = new Application().setName("app").setDetails([key: "value"])
+
+    when:
+    def encoded = codec.encode(app)
+
+    then:
+    !new ObjectMapper(format == JacksonResourceCodec.Format.SMILE ? new SmileFactory() : null)
+        .readValue(encoded, Map)
+        .containsKey("details")
+    codec.decode(encoded, Application).name == "app"
+
+    where:
+    format << JacksonResourceCodec.Format.values()
+  }
+
+  static abstract class IgnoreDetails {
+    @JsonIgnore
+    abstract Map<String, Object> getDetails()
+  }
+}
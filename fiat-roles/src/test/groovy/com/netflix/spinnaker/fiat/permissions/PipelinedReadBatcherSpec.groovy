@@ -0,0 +1,111 @@
+/*
+ * Copyright 2020 Netflix, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.spinnaker.fiat.permissions
+
+import spock.lang.Specification
+
+import java.util.concurrent.Callable
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeoutException
+import java.util.function.Supplier
+
+class PipelinedReadBatcherSpec extends Specification {
+
+  def "should only fail the reads of keys that failed to decode"() {
+    setup:
+    def batcher = new PipelinedReadBatcher<String, String>("test", { List<String> keys ->
+      keys.collect { key ->
+        { ->
+          if (key == "bad") {
+            throw new IllegalArgumentException(key)
+          }
+          key.toUpperCase()
+        } as Supplier
+      }
+    }, 10, 1, 1000)
+
+    when:
+    def executor = Executors.newFixedThreadPool(4)
+    def results = ["a", "bad", "b", "c"].collect { key ->
+      executor.submit({
+        try {
+          batcher.read(key)
+        } catch (ExecutionException e) {
+          e.cause.class.simpleName
+        }
+      } as Callable)
+    }*.get()
+    executor.shutdown()
+
+    then:
+    results == ["A", "IllegalArgumentException", "B", "C"]
+
+    cleanup:
+    batcher.close()
+  }
+
+  def "should decode values on the threads reading them"() {
+    setup:
+    def batcher = new PipelinedReadBatcher<String, String>("test", { List<String> keys ->
+      keys.collect { key -> { -> Thread.currentThread().name } as Supplier }
+    }, 10, 1, 1000)
+
+    expect:
+    batcher.read("a") == Thread.currentThread().name
+
+    cleanup:
+    batcher.close()
+  }
+
+  def "should time out reads that are not answered in time"() {
+    setup:
+    def blocked = new CountDownLatch(1)
+    def batcher = new PipelinedReadBatcher<String, String>("test", { List<String> keys ->
+      blocked.await()
+      keys.collect { key -> { -> key } as Supplier }
+    }, 10, 1, 50)
+
+    when:
+    batcher.read("a")
+
+    then:
+    thrown TimeoutException
+
+    cleanup:
+    blocked.countDown()
+    batcher.close()
+  }
+
+  def "should stop batching once closed"() {
+    setup:
+    def batcher = new PipelinedReadBatcher<String, String>("test", { List<String> keys ->
+      keys.collect { key -> { -> key } as Supplier }
+    }, 10, 2, 1000)
+
+    expect:
+    batcher.read("a") == "a"
+
+    when:
+    batcher.close()
+    batcher.read("b")
+
+    then:
+    thrown IllegalStateException
+  }
+}
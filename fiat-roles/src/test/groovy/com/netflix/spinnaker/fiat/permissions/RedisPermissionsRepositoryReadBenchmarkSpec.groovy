@@ -0,0 +1,130 @@
+/*
+ * Copyright 2020 Netflix, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.spinnaker.fiat.permissions
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.netflix.spectator.api.NoopRegistry
+import com.netflix.spinnaker.fiat.config.RedisPermissionRepositoryConfigProps
+import com.netflix.spinnaker.fiat.model.UserPermission
+import com.netflix.spinnaker.fiat.model.resources.Account
+import com.netflix.spinnaker.fiat.model.resources.Application
+import com.netflix.spinnaker.kork.jedis.EmbeddedRedis
+import com.netflix.spinnaker.kork.jedis.JedisClientDelegate
+import redis.clients.jedis.JedisPool
+import redis.clients.jedis.JedisPoolConfig
+import spock.lang.AutoCleanup
+import spock.lang.Requires
+import spock.lang.Shared
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+/**
+ * Compares single user reads with and without {@code batchReads} under many concurrent readers,
+ * sharing a pool of as many connections as fiat's default. Run with FIAT_BENCHMARKS=true.
+ */
+@Requires({ env.FIAT_BENCHMARKS })
+class RedisPermissionsRepositoryReadBenchmarkSpec extends Specification {
+
+  private static final int USERS = 1000
+  private static final int READS_PER_READER = 20
+
+  @Shared
+  @AutoCleanup("destroy")
+  EmbeddedRedis embeddedRedis
+
+  @Shared
+  @AutoCleanup("close")
+  JedisPool pool
+
+  def setupSpec() {
+    embeddedRedis = EmbeddedRedis.embed()
+    pool = new JedisPool(new JedisPoolConfig(maxTotal: 20, maxIdle: 20), "localhost", embeddedRedis.port)
+    repository(false).putAll((1..USERS).collect { i ->
+      new UserPermission().setId("user$i")
+                          .setAccounts((1..10).collect { new Account().setName("account$it") } as Set)
+                          .setApplications((1..50).collect { new Application().setName("app$it") } as Set)
+    })
+  }
+
+  @Unroll
+  def "should read users with #readers concurrent readers, batchReads: #batchReads"() {
+    setup:
+    def repo = repository(batchReads)
+    def executor = Executors.newFixedThreadPool(readers)
+    def start = new CountDownLatch(1)
+    def latencies = Collections.synchronizedList(new ArrayList<Long>(readers * READS_PER_READER))
+    def random = new Random(0)
+    def failures = Collections.synchronizedList([])
+
+    when:
+    readers.times {
+      executor.execute {
+        start.await()
+        READS_PER_READER.times {
+          def began = System.nanoTime()
+          if (!repo.get("user${random.nextInt(USERS) + 1}".toString()).isPresent()) {
+            failures << it
+          }
+          latencies << System.nanoTime() - began
+        }
+      }
+    }
+    def began = System.nanoTime()
+    start.countDown()
+    executor.shutdown()
+    executor.awaitTermination(5, TimeUnit.MINUTES)
+    def elapsedMs = (System.nanoTime() - began) / 1_000_000
+
+    then:
+    failures.isEmpty()
+
+    cleanup:
+    def sorted = latencies.sort()
+    println(String.format(
+        "readers: %5d, batchReads: %5s, reads/s: %8.0f, p50: %6.2f ms, p99: %7.2f ms",
+        readers,
+        batchReads,
+        latencies.size() * 1000 / elapsedMs,
+        sorted[(int) (sorted.size() * 0.5)] / 1_000_000,
+        sorted[(int) (sorted.size() * 0.99)] / 1_000_000))
+    repo.close()
+
+    where:
+    readers | batchReads
+    100     | false
+    100     | true
+    1000    | false
+    1000    | true
+    2000    | false
+    2000    | true
+  }
+
+  private RedisPermissionsRepository repository(boolean batchReads) {
+    new RedisPermissionsRepository(
+        new JacksonResourceCodec(new ObjectMapper(), JacksonResourceCodec.Format.JSON),
+        new JedisClientDelegate(pool),
+        new NoopRegistry(),
+        new RedisPermissionRepositoryConfigProps().setBatchReads(batchReads),
+        "benchmark",
+        10_000
+    )
+  }
+}
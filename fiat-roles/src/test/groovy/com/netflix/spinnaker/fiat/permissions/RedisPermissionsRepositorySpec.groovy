@@ -18,12 +18,16 @@ package com.netflix.spinnaker.fiat.permissions
 
 import com.fasterxml.jackson.annotation.JsonInclude
 import com.fasterxml.jackson.databind.ObjectMapper
+import com.netflix.spectator.api.DefaultRegistry
+import com.netflix.spectator.api.NoopRegistry
+import com.netflix.spinnaker.fiat.config.RedisPermissionRepositoryConfigProps
 import com.netflix.spinnaker.fiat.config.UnrestrictedResourceConfig
 import com.netflix.spinnaker.fiat.model.Authorization
 import com.netflix.spinnaker.fiat.model.UserPermission
 import com.netflix.spinnaker.fiat.model.resources.Account
 import com.netflix.spinnaker.fiat.model.resources.Application
 import com.netflix.spinnaker.fiat.model.resources.Permissions
+import com.netflix.spinnaker.fiat.model.resources.ResourceType
 import com.netflix.spinnaker.fiat.model.resources.Role
 import com.netflix.spinnaker.fiat.model.resources.ServiceAccount
 import com.netflix.spinnaker.kork.jedis.EmbeddedRedis
@@ -34,6 +38,10 @@ import spock.lang.AutoCleanup
 import spock.lang.Shared
 import spock.lang.Specification
 import spock.lang.Subject
+import spock.lang.Timeout
+
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
 
 class RedisPermissionsRepositorySpec extends Specification {
 
@@ -64,8 +72,10 @@ class RedisPermissionsRepositorySpec extends Specification {
 
   def setup() {
     repo = new RedisPermissionsRepository(
-        objectMapper,
+        new JacksonResourceCodec(objectMapper, JacksonResourceCodec.Format.JSON),
         new JedisClientDelegate(embeddedRedis.pool as JedisPool),
+        new NoopRegistry(),
+        new RedisPermissionRepositoryConfigProps(),
         prefix
     )
   }
@@ -138,6 +148,97 @@ class RedisPermissionsRepositorySpec extends Specification {
     jedis.smembers("unittests:roles:role1") == [] as Set
   }
 
+  def "should skip rewriting a permission that has not changed"() {
+    setup:
+    def permission = new UserPermission()
+        .setId("testUser")
+        .setAccounts([new Account().setName("account")] as Set)
+        .setRoles([new Role("role1")] as Set)
+    repo.put(permission)
+
+    and:
+    jedis.hset("unittests:permissions:testUser:accounts", "marker", "{}")
+
+    when:
+    repo.put(permission)
+
+    then:
+    jedis.hgetAll("unittests:permissions:testUser:accounts").containsKey("marker")
+
+    when:
+    repo.put(permission.setAccounts([new Account().setName("account2")] as Set))
+
+    then:
+    jedis.hgetAll("unittests:permissions:testUser:accounts") ==
+        ['account2': /{"name":"account2","permissions":$EMPTY_PERM_JSON}/.toString()]
+    jedis.smembers("unittests:roles:role1") == ["testUser"] as Set
+  }
+
+  def "should repair lost index entries of a permission that has not changed"() {
+    setup:
+    def permission = new UserPermission()
+        .setId("testUser")
+        .setRoles([new Role("role1")] as Set)
+        .setAdmin(true)
+    repo.put(permission)
+
+    and: "redis loses the index entries, but not the user's hashes"
+    jedis.del("unittests:roles:role1", "unittests:permissions:admin", "unittests:users")
+
+    when:
+    repo.put(permission)
+
+    then:
+    jedis.smembers("unittests:roles:role1") == ["testUser"] as Set
+    jedis.smembers("unittests:permissions:admin") == ["testUser"] as Set
+    jedis.smembers("unittests:users") == ["testUser"] as Set
+  }
+
+  def "should put all permissions in batches"() {
+    setup:
+    def batchedRepo = new RedisPermissionsRepository(
+        new JacksonResourceCodec(objectMapper, JacksonResourceCodec.Format.JSON),
+        new JedisClientDelegate(embeddedRedis.pool as JedisPool),
+        new NoopRegistry(),
+        new RedisPermissionRepositoryConfigProps().setPutBatchSize(2).setPutThreads(2),
+        prefix
+    )
+    def permissions = (1..5).collect {
+      new UserPermission().setId("user$it")
+                          .setAccounts([new Account().setName("account$it")] as Set)
+                          .setRoles([new Role("role$it")] as Set)
+                          .setAdmin(it == 1)
+    }
+    permissions << new UserPermission().setId(UNRESTRICTED)
+                                       .setAccounts([new Account().setName("unrestrictedAccount")] as Set)
+
+    when:
+    batchedRepo.putAll(permissions)
+
+    then:
+    jedis.smembers("unittests:users") == ["user1", "user2", "user3", "user4", "user5", UNRESTRICTED] as Set
+    jedis.smembers("unittests:roles:role3") == ["user3"] as Set
+    jedis.smembers("unittests:permissions:admin") == ["user1"] as Set
+    jedis.get("unittests:permissions:__unrestricted_user__:version") == "1"
+    batchedRepo.getAllById().values()*.accounts*.name*.sort() as Set == [
+        ["account1", "unrestrictedAccount"],
+        ["account2", "unrestrictedAccount"],
+        ["account3", "unrestrictedAccount"],
+        ["account4", "unrestrictedAccount"],
+        ["account5", "unrestrictedAccount"],
+        ["unrestrictedAccount"]
+    ] as Set
+
+    when:
+    permissions[1].setRoles([new Role("role1")] as Set)
+    batchedRepo.putAll(permissions)
+
+    then:
+    jedis.smembers("unittests:roles:role1") == ["user1", "user2"] as Set
+    !jedis.exists("unittests:roles:role2")
+    jedis.get("unittests:permissions:__unrestricted_user__:version") == "1"
+  }
+
   def "should get the permission out of redis"() {
     setup:
     jedis.sadd("unittests:users", "testUser");
@@ -175,6 +276,230 @@ class RedisPermissionsRepositorySpec extends Specification {
     result == expected
   }
 
+  def "should batch concurrent reads"() {
+    setup:
+    def batchingRepo = new RedisPermissionsRepository(
+        new JacksonResourceCodec(objectMapper, JacksonResourceCodec.Format.JSON),
+        new JedisClientDelegate(embeddedRedis.pool as JedisPool),
+        new NoopRegistry(),
+        new RedisPermissionRepositoryConfigProps().setBatchReads(true),
+        prefix
+    )
+    repo.putAll((1..20).collect {
+      new UserPermission().setId("user$it").setAccounts([new Account().setName("account$it")] as Set)
+    })
+
+    when:
+    def executor = Executors.newFixedThreadPool(8)
+    def results = (1..40).collect { i ->
+      def userId = "user${(i % 21) ?: 21}".toString()
+      executor.submit({ [userId, batchingRepo.get(userId)] } as Callable)
+    }*.get()
+    executor.shutdown()
+
+    then:
+    results.every { userId, permission ->
+      userId == "user21" ? !permission.isPresent() : permission.get().accounts*.name == ["account${userId - 'user'}".toString()]
+    }
+
+    cleanup:
+    batchingRepo.close()
+  }
+
+  def "should get only the requested resources"() {
+    setup:
+    def role1 = new Role("role1")
+    def app = new Application().setName("app")
+                               .setPermissions(new Permissions.Builder().add(Authorization.READ, "role1").build())
+    repo.put(new UserPermission().setId("testUser")
+                                 .setAccounts([new Account().setName("account")] as Set)
+                                 .setApplications([app] as Set)
+                                 .setRoles([role1] as Set))
+    repo.put(new UserPermission().setId(UNRESTRICTED)
+                                 .setApplications([new Application().setName("unrestrictedApp")] as Set))
+
+    expect:
+    repo.getResources("testUser", ResourceType.APPLICATION).get() ==
+        new UserPermission().setId("testUser")
+                            .setRoles([role1] as Set)
+                            .setApplications([app, new Application().setName("unrestrictedApp")] as Set)
+    repo.getResource("testUser", ResourceType.APPLICATION, "app").get() ==
+        new UserPermission().setId("testUser").setRoles([role1] as Set).setApplications([app] as Set)
+    repo.getResource("testUser", ResourceType.APPLICATION, "APP").get().applications == [app] as Set
+    repo.getResource("testUser", ResourceType.APPLICATION, "unrestrictedApp").get().applications*.name == ["unrestrictedApp"]
+    repo.getResource("testUser", ResourceType.APPLICATION, "other").get().applications.isEmpty()
+    !repo.getResources("unknownUser", ResourceType.ACCOUNT).isPresent()
+  }
+
+  def "should reload the unrestricted user only when its version changes"() {
+    setup:
+    repo.put(new UserPermission().setId("testUser"))
+    repo.put(new UserPermission().setId(UNRESTRICTED)
+                                 .setAccounts([new Account().setName("unrestrictedAccount")] as Set))
+
+    expect:
+    repo.get("testUser").get().accounts*.name == ["unrestrictedAccount"]
+
+    when:
+    jedis.hset("unittests:permissions:__unrestricted_user__:accounts",
+               "otherAccount",
+               '{"name":"otherAccount"}')
+
+    then:
+    repo.get("testUser").get().accounts*.name == ["unrestrictedAccount"]
+
+    when:
+    jedis.incr("unittests:permissions:__unrestricted_user__:version")
+
+    then:
+    repo.get("testUser").get().accounts*.name.sort() == ["otherAccount", "unrestrictedAccount"]
+  }
+
+  def "should read both json and smile encoded resources"() {
+    setup:
+    def smileRepo = new RedisPermissionsRepository(
+        new JacksonResourceCodec(objectMapper, JacksonResourceCodec.Format.SMILE),
+        new JedisClientDelegate(embeddedRedis.pool as JedisPool),
+        new NoopRegistry(),
+        new RedisPermissionRepositoryConfigProps(),
+        prefix
+    )
+    def app = new Application().setName("app")
+                               .setPermissions(new Permissions.Builder().add(Authorization.READ, "role1").build())
+
+    when:
+    smileRepo.put(new UserPermission().setId("smileUser").setApplications([app] as Set))
+    jedis.sadd("unittests:users", "jsonUser")
+    jedis.hset("unittests:permissions:jsonUser:accounts",
+               "account",
+               '{"name":"account","requiredGroupMembership":["abc"]}')
+
+    then:
+    !jedis.hget("unittests:permissions:smileUser:applications", "app").startsWith("{")
+    repo.get("smileUser").get().applications == [app] as Set
+    smileRepo.get("jsonUser").get().accounts ==
+        [new Account().setName("account").setRequiredGroupMembership(["abc"])] as Set
+  }
+
+  def "should store shared resource bodies once when normalized"() {
+    setup:
+    def normalizedRepo = new RedisPermissionsRepository(
+        new JacksonResourceCodec(objectMapper, JacksonResourceCodec.Format.JSON),
+        new JedisClientDelegate(embeddedRedis.pool as JedisPool),
+        new NoopRegistry(),
+        new RedisPermissionRepositoryConfigProps().setNormalizeResources(true),
+        prefix
+    )
+    def app = new Application().setName("app")
+                               .setPermissions(new Permissions.Builder().add(Authorization.READ, "role1").build())
+    def role = new Role("role1")
+
+    when:
+    normalizedRepo.put(new UserPermission().setId("user1").setApplications([app] as Set).setRoles([role] as Set))
+    normalizedRepo.put(new UserPermission().setId("user2").setApplications([app] as Set))
+
+    then:
+    jedis.hgetAll("unittests:resources:applications") ==
+        ['app': '{"name":"app","permissions":{"READ":["role1"]},"details":{}}']
+    jedis.hgetAll("unittests:permissions:user1:applications") == ['app': '#']
+    jedis.hgetAll("unittests:permissions:user2:applications") == ['app': '#']
+    jedis.hgetAll("unittests:permissions:user1:roles") == ['role1': '{"name":"role1"}']
+    normalizedRepo.get("user1").get().applications == [app] as Set
+    repo.get("user2").get().applications == [app] as Set
+
+    when:
+    def sequence = normalizedRepo.getChangesSince(null).get().sequence
+    def updatedApp = new Application().setName("app")
+                                      .setPermissions(new Permissions.Builder().add(Authorization.READ, "role2").build())
+    normalizedRepo.put(new UserPermission().setId("user1").setApplications([updatedApp] as Set).setRoles([role] as Set))
+
+    then: "user2 did not change, but its cached permissions are out of date"
+    jedis.hgetAll("unittests:permissions:user1:applications") == ['app': '#']
+    normalizedRepo.getChangesSince(sequence).get().reset
+    normalizedRepo.get("user2").get().applications == [updatedApp] as Set
+    repo.getAllById()["user1"].applications == [updatedApp] as Set
+  }
+
+  def "should rewrite shared resource bodies that are no longer stored"() {
+    setup:
+    def normalizedRepo = new RedisPermissionsRepository(
+        new JacksonResourceCodec(objectMapper, JacksonResourceCodec.Format.JSON),
+        new JedisClientDelegate(embeddedRedis.pool as JedisPool),
+        new NoopRegistry(),
+        new RedisPermissionRepositoryConfigProps().setNormalizeResources(true),
+        prefix
+    )
+    def permission = new UserPermission().setId("user1").setApplications([new Application().setName("app")] as Set)
+    normalizedRepo.put(permission)
+
+    expect:
+    jedis.hkeys("unittests:resources:digests") == ["applications:app"] as Set
+
+    when: "redis loses its data, as after a flush or failover"
+    jedis.flushDB()
+    normalizedRepo.put(permission)
+
+    then:
+    jedis.hkeys("unittests:resources:applications") == ["app"] as Set
+    normalizedRepo.get("user1").get().applications*.name == ["app"]
+  }
+
+  def "should prune shared resource bodies that are no longer provided"() {
+    setup:
+    def normalizedRepo = new RedisPermissionsRepository(
+        new JacksonResourceCodec(objectMapper, JacksonResourceCodec.Format.JSON),
+        new JedisClientDelegate(embeddedRedis.pool as JedisPool),
+        new NoopRegistry(),
+        new RedisPermissionRepositoryConfigProps().setNormalizeResources(true),
+        prefix
+    )
+    def app = new Application().setName("app")
+    def removedApp = new Application().setName("removedApp")
+    def account = new Account().setName("account")
+    normalizedRepo.put(new UserPermission().setId("user1").setApplications([app, removedApp] as Set))
+    normalizedRepo.put(new UserPermission().setId("user2").setAccounts([account] as Set))
+
+    when: "the users are synced against resources without removedApp"
+    normalizedRepo.put(new UserPermission().setId("user1").setApplications([app] as Set))
+    normalizedRepo.pruneResources([app, account])
+
+    then:
+    jedis.hkeys("unittests:resources:applications") == ["app"] as Set
+    jedis.hkeys("unittests:resources:accounts") == ["account"] as Set
+    jedis.hkeys("unittests:resources:digests") == ["applications:app", "accounts:account"] as Set
+    normalizedRepo.get("user1").get().applications == [app] as Set
+    normalizedRepo.get("user2").get().accounts == [account] as Set
+
+    when: "the removed application is provided again"
+    normalizedRepo.put(new UserPermission().setId("user1").setApplications([app, removedApp] as Set))
+
+    then:
+    jedis.hkeys("unittests:resources:applications") == ["app", "removedApp"] as Set
+    normalizedRepo.get("user1").get().applications == [app, removedApp] as Set
+  }
+
+  def "should skip references to shared resource bodies that are not stored"() {
+    setup:
+    def registry = new DefaultRegistry()
+    def normalizedRepo = new RedisPermissionsRepository(
+        new JacksonResourceCodec(objectMapper, JacksonResourceCodec.Format.JSON),
+        new JedisClientDelegate(embeddedRedis.pool as JedisPool),
+        registry,
+        new RedisPermissionRepositoryConfigProps().setNormalizeResources(true),
+        prefix
+    )
+    def app = new Application().setName("app")
+    normalizedRepo.put(new UserPermission().setId("user1").setApplications([app] as Set))
+    normalizedRepo.pruneResources([])
+
+    when:
+    def permission = normalizedRepo.get("user1").get()
+
+    then:
+    permission.applications.isEmpty()
+    registry.counter("fiat.permissionsRepository.danglingReferences").count() == 1
+  }
+
   def "should get all users from redis"() {
     setup:
     jedis.sadd("unittests:users", "testUser1", "testUser2", "testUser3");
@@ -226,6 +551,74 @@ class RedisPermissionsRepositorySpec extends Specification {
     result == ["testUser1": testUser1, "testUser2": testUser2, "testUser3": testUser3]
   }
 
+  def "should get all users across concurrent, adaptively sized batches"() {
+    setup:
+    def concurrentRepo = new RedisPermissionsRepository(
+        new JacksonResourceCodec(objectMapper, JacksonResourceCodec.Format.JSON),
+        new JedisClientDelegate(embeddedRedis.pool as JedisPool),
+        new NoopRegistry(),
+        new RedisPermissionRepositoryConfigProps().setReadThreads(3).setReadBatchTargetBytes(100),
+        prefix
+    )
+    repo.putAll((1..50).collect {
+      new UserPermission().setId("user$it").setAccounts([new Account().setName("account$it")] as Set)
+    })
+    repo.put(new UserPermission().setId(UNRESTRICTED)
+                                 .setAccounts([new Account().setName("unrestrictedAccount")] as Set))
+
+    when:
+    def result = concurrentRepo.getAllById()
+
+    then:
+    result.size() == 51
+    (1..50).every {
+      result["user$it".toString()].accounts*.name.sort() == ["account$it".toString(), "unrestrictedAccount"]
+    }
+    result[UNRESTRICTED].accounts*.name == ["unrestrictedAccount"]
+
+    when:
+    def streamed = []
+    concurrentRepo.forEachUser { streamed << it }
+
+    then:
+    streamed.collectEntries { [(it.id): it] } == result
+  }
+
+  @Timeout(30)
+  def "should read and write users from within forEachUser"() {
+    setup:
+    def concurrentRepo = new RedisPermissionsRepository(
+        new JacksonResourceCodec(objectMapper, JacksonResourceCodec.Format.JSON),
+        new JedisClientDelegate(embeddedRedis.pool as JedisPool),
+        new NoopRegistry(),
+        new RedisPermissionRepositoryConfigProps().setReadThreads(2).setPutThreads(2).setPutBatchSize(1)
+                                                  .setReadBatchTargetBytes(100),
+        prefix
+    )
+    def ids = (1..50).collect { "user$it".toString() }
+    repo.putAll(ids.collect {
+      new UserPermission().setId(it).setAccounts([new Account().setName("account")] as Set)
+    })
+
+    when: "every reader is blocked handing off users while the consumer reads and writes"
+    def streamed = 0
+    concurrentRepo.forEachUser {
+      streamed++
+      if (streamed == 1) {
+        Thread.sleep(100)
+        assert concurrentRepo.getAll(ids).size() == 50
+        concurrentRepo.putAll(ids.take(5).collect { new UserPermission().setId(it) })
+      }
+    }
+
+    then:
+    streamed == 50
+    repo.get("user1").get().accounts.isEmpty()
+
+    cleanup:
+    concurrentRepo.close()
+  }
+
   def "should delete the specified user"() {
     given:
     jedis.keys("*").size() == 0
@@ -243,14 +636,51 @@ class RedisPermissionsRepositorySpec extends Specification {
                  .setAdmin(true))
 
     then:
-    jedis.keys("*").size() == 6 // users, accounts, applications, roles, and reverse-index roles.
+    jedis.keys("*").size() == 9 // users, accounts, applications, roles, reverse-index roles, digests, and changes.
     jedis.sismember("unittests:permissions:admin", "testUser")
 
     when:
     repo.remove("testUser")
 
+    then: "only the record of the change is left"
+    jedis.keys("*") == ["unittests:permissions:changes", "unittests:permissions:changes:sequence"] as Set
+  }
+
+  def "should list the users changed since a sequence number"() {
+    given:
+    def start = repo.getChangesSince(null).get()
+
+    expect:
+    start.sequence == 0
+    start.userIds.isEmpty()
+
+    when:
+    repo.putAll([new UserPermission().setId("user1"), new UserPermission().setId("user2")])
+    def changes = repo.getChangesSince(start.sequence).get()
+
     then:
-    jedis.keys("*").size() == 0
+    changes.sequence == 2
+    changes.userIds == ["user1", "user2"] as Set
+    !changes.reset
+
+    when: "unchanged users are not rewritten, so not listed either"
+    repo.put(new UserPermission().setId("user1"))
+    repo.put(new UserPermission().setId("user2").setAccounts([new Account().setName("account")] as Set))
+    repo.remove("user1")
+    def next = repo.getChangesSince(changes.sequence).get()
+
+    then:
+    next.sequence == 4
+    next.userIds == ["user2", "user1"] as Set
+    !next.reset
+
+    when:
+    repo.put(new UserPermission().setId(UNRESTRICTED))
+
+    then:
+    repo.getChangesSince(next.sequence).get().reset
+    repo.getChangesSince(100).get().reset
+    repo.getChangesSince(5).get().userIds.isEmpty()
   }
 
   def "should get all by roles"() {
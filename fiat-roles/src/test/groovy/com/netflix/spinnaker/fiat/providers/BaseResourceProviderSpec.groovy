@@ -111,6 +111,89 @@ class BaseResourceProviderSpec extends Specification {
     thrown IllegalArgumentException
   }
 
+  def "should index restricted resources by role until they are reloaded"() {
+    setup:
+    def loaded = [noReqGroups, reqGroup1] as Set
+    @Subject provider = new BaseResourceProvider<TestResource>() {
+      @Override
+      protected Set<TestResource> loadAll() throws ProviderException {
+        return loaded
+      }
+    }
+
+    expect:
+    provider.getAllRestricted([new Role("group2")] as Set, false).isEmpty()
+    provider.getAllRestricted([new Role("group1")] as Set, false) == [reqGroup1] as Set
+    provider.getAllRestricted([] as Set, true) == [reqGroup1] as Set
+
+    when:
+    loaded = [noReqGroups, reqGroup1, reqGroup1and2] as Set
+    provider.reloadCache()
+
+    then:
+    provider.getAllRestricted([new Role("group2")] as Set, false) == [reqGroup1and2] as Set
+    provider.getAllRestricted([new Role("group1"), new Role("group2")] as Set, false) == [reqGroup1, reqGroup1and2] as Set
+    provider.getAllRestricted([] as Set, true) == [reqGroup1, reqGroup1and2] as Set
+  }
+
+  def "should keep the indexes of the snapshot and live resources in use at the same time"() {
+    setup:
+    def indexed = 0
+    def loaded = [reqGroup1] as Set
+    @Subject provider = new BaseResourceProvider<TestResource>() {
+      @Override
+      protected Set<TestResource> loadAll() throws ProviderException {
+        return loaded
+      }
+
+      @Override
+      protected Collection<String> getIndexedRoles(TestResource resource) {
+        indexed++
+        return super.getIndexedRoles(resource)
+      }
+    }
+    def snapshot = ResourceSnapshot.take([provider], null)
+
+    loaded = [reqGroup1, reqGroup1and2] as Set
+    provider.reloadCache()
+
+    when: "a sync and requests alternate between the snapshot and the live resources"
+    3.times {
+      provider.getAllRestricted(snapshot, [new Role("group2")] as Set, false)
+      provider.getAllRestricted([new Role("group2")] as Set, false)
+    }
+
+    then: "each is indexed once"
+    indexed == 3
+    provider.getAllRestricted(snapshot, [new Role("group2")] as Set, false).isEmpty()
+    provider.getAllRestricted([new Role("group2")] as Set, false) == [reqGroup1and2] as Set
+  }
+
+  def "should version snapshots by whether their resources were reloaded differently"() {
+    setup:
+    @Subject provider = new TestResourceResourceProvider()
+    provider.all = [reqGroup1] as Set
+    def first = ResourceSnapshot.take([provider], null)
+
+    when: "the resources are reloaded unchanged"
+    provider.all = [reqGroup1] as Set
+    provider.reloadCache()
+    def second = ResourceSnapshot.take([provider], first)
+
+    then: "the same snapshot keeps being used"
+    second.is(first)
+
+    when: "the resources change"
+    provider.all = [reqGroup1, reqGroup1and2] as Set
+    provider.reloadCache()
+    def third = ResourceSnapshot.take([provider], second)
+
+    then:
+    third.version == second.version + 1
+    provider.getAllRestricted(second, [new Role("group2")] as Set, false).isEmpty()
+    provider.getAllRestricted(third, [new Role("group2")] as Set, false) == [reqGroup1and2] as Set
+  }
+
   class TestResourceResourceProvider extends BaseResourceProvider<TestResource> {
     Set<TestResource> all = new HashSet<>()
 
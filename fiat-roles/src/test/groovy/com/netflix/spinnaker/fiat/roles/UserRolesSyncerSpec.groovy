@@ -22,12 +22,20 @@ import com.netflix.appinfo.InstanceInfo.InstanceStatus
 import com.netflix.discovery.DiscoveryClient
 import com.netflix.spectator.api.NoopRegistry
 import com.netflix.spectator.api.Registry
+import com.netflix.spinnaker.fiat.config.FiatAdminConfig
+import com.netflix.spinnaker.fiat.config.RedisPermissionRepositoryConfigProps
 import com.netflix.spinnaker.fiat.config.ResourceProvidersHealthIndicator
 import com.netflix.spinnaker.fiat.config.UnrestrictedResourceConfig
 import com.netflix.spinnaker.fiat.model.UserPermission
+import com.netflix.spinnaker.fiat.model.Authorization
 import com.netflix.spinnaker.fiat.model.resources.Account
+import com.netflix.spinnaker.fiat.model.resources.Application
+import com.netflix.spinnaker.fiat.model.resources.Permissions
 import com.netflix.spinnaker.fiat.model.resources.Role
 import com.netflix.spinnaker.fiat.model.resources.ServiceAccount
+import com.netflix.spinnaker.fiat.permissions.ExternalUser
+import com.netflix.spinnaker.fiat.permissions.JacksonResourceCodec
+import com.netflix.spinnaker.fiat.permissions.PermissionsRepository
 import com.netflix.spinnaker.fiat.permissions.PermissionsResolver
 import com.netflix.spinnaker.fiat.permissions.RedisPermissionsRepository
 import com.netflix.spinnaker.fiat.providers.ResourceProvider
@@ -43,7 +51,6 @@ import spock.lang.Specification
 import spock.lang.Subject
 import spock.lang.Unroll
 
-import java.util.concurrent.Callable
 
 class UserRolesSyncerSpec extends Specification {
 
@@ -73,8 +80,10 @@ class UserRolesSyncerSpec extends Specification {
 
   def setup() {
     repo = new RedisPermissionsRepository(
-        objectMapper,
+        new JacksonResourceCodec(objectMapper, JacksonResourceCodec.Format.JSON),
         new JedisClientDelegate(embeddedRedis.pool as JedisPool),
+        registry,
+        new RedisPermissionRepositoryConfigProps(),
         "unittests"
     )
   }
@@ -129,25 +138,24 @@ class UserRolesSyncerSpec extends Specification {
 
     def permissionsResolver = Mock(PermissionsResolver)
 
-    def lockManager = Mock(LockManager) {
-      _ * acquireLock() >> { LockManager.LockOptions lockOptions, Callable onLockAcquiredCallback ->
-        onLockAcquiredCallback.call()
-      }
-    }
-
     @Subject
     def syncer = new UserRolesSyncer(
         Optional.ofNullable(null),
         registry,
-        lockManager,
+        acquiringLockManager(),
         repo,
         permissionsResolver,
         serviceAccountProvider,
+        [serviceAccountProvider],
+        new FiatAdminConfig(),
         new AlwaysUpHealthIndicator(),
         1,
         1,
         1,
-        1
+        1,
+        -1,
+        1,
+        1000
     )
 
     expect:
@@ -162,7 +170,7 @@ class UserRolesSyncerSpec extends Specification {
     syncer.syncAndReturn(syncRoles)
 
     then:
-    permissionsResolver.resolve(_ as List) >> {
+    permissionsResolver.resolve(_ as List, _) >> {
       if (fullsync) {
         ["user1"         : user1,
          "user2"         : newUser2,
@@ -174,7 +182,7 @@ class UserRolesSyncerSpec extends Specification {
          "abc"           : abcServiceAcct]
       }
     }
-    permissionsResolver.resolveUnrestrictedUser() >> unrestrictedUser
+    permissionsResolver.resolveUnrestrictedUser(_) >> unrestrictedUser
 
     expect:
     def expectedResult
@@ -205,6 +213,262 @@ class UserRolesSyncerSpec extends Specification {
     ["extrolec"] | false
   }
 
+  def "should only sync users in roles of changed resources"() {
+    setup:
+    def roleA = new Role("roleA").setSource(Role.Source.EXTERNAL)
+    def roleB = new Role("roleB").setSource(Role.Source.EXTERNAL)
+    def appA = new Application().setName("appA")
+                                .setPermissions(new Permissions.Builder().add(Authorization.READ, "roleA").build())
+    def appB = new Application().setName("appB")
+                                .setPermissions(new Permissions.Builder().add(Authorization.READ, "roleB").build())
+    def userA = new UserPermission().setId("userA").setRoles([roleA] as Set)
+    def userB = new UserPermission().setId("userB").setRoles([roleB] as Set)
+    repo.put(userA)
+    repo.put(userB)
+
+    def apps = [appA, appB] as Set
+    def applicationProvider = Mock(ResourceProvider) {
+      getAll() >> { apps }
+    }
+    def serviceAccountProvider = Mock(ResourceProvider) {
+      getAll() >> []
+    }
+    def permissionsResolver = Mock(PermissionsResolver)
+
+    @Subject
+    def syncer = new UserRolesSyncer(
+        Optional.ofNullable(null),
+        registry,
+        Mock(LockManager),
+        repo,
+        permissionsResolver,
+        serviceAccountProvider,
+        [applicationProvider, serviceAccountProvider],
+        new FiatAdminConfig(),
+        new AlwaysUpHealthIndicator(),
+        1,
+        1,
+        1,
+        1,
+        1,
+        1,
+        1000
+    )
+
+    when: "the first run only records the current resources"
+    def count = syncer.syncChangedResources()
+
+    then:
+    count == 0
+    0 * permissionsResolver.resolve(_ as List, _)
+
+    when: "nothing changed"
+    count = syncer.syncChangedResources()
+
+    then:
+    count == 0
+    0 * permissionsResolver.resolve(_ as List, _)
+
+    when: "appA is opened up to roleB as well"
+    def sharedAppA = new Application().setName("appA")
+                                      .setPermissions(new Permissions.Builder().add(Authorization.READ, ["roleA", "roleB"]).build())
+    apps = [sharedAppA, appB] as Set
+    count = syncer.syncChangedResources()
+
+    then:
+    1 * permissionsResolver.resolveUnrestrictedUser(_) >> new UserPermission().setId(UNRESTRICTED)
+    1 * permissionsResolver.resolve({ it*.id as Set == ["userA", "userB"] as Set }, _) >> [
+        "userA": userA.setApplications([sharedAppA] as Set),
+        "userB": userB.setApplications([sharedAppA, appB] as Set)
+    ]
+    count == 2
+    repo.get("userB").get().applications == [sharedAppA, appB] as Set
+  }
+
+  def "should sync changed resources again if their sync failed"() {
+    setup:
+    def appA = new Application().setName("appA")
+    def apps = [appA] as Set
+    def applicationProvider = Mock(ResourceProvider) {
+      getAll() >> { apps }
+    }
+    def serviceAccountProvider = Mock(ResourceProvider) {
+      getAll() >> []
+    }
+    def permissionsResolver = Mock(PermissionsResolver)
+
+    @Subject
+    def syncer = new UserRolesSyncer(
+        Optional.ofNullable(null),
+        registry,
+        Mock(LockManager),
+        repo,
+        permissionsResolver,
+        serviceAccountProvider,
+        [applicationProvider, serviceAccountProvider],
+        new FiatAdminConfig(),
+        new AlwaysUpHealthIndicator(),
+        1,
+        1,
+        1,
+        1,
+        1,
+        1,
+        1000
+    )
+    syncer.syncChangedResources()
+
+    when: "the sync of a changed unrestricted resource fails"
+    apps = [appA, new Application().setName("appB")] as Set
+    syncer.syncChangedResources()
+
+    then:
+    1 * permissionsResolver.resolveUnrestrictedUser(_) >> { throw new IllegalStateException("redis is down") }
+    thrown IllegalStateException
+
+    when:
+    def count = syncer.syncChangedResources()
+
+    then: "the next one syncs it again"
+    1 * permissionsResolver.resolveUnrestrictedUser(_) >> new UserPermission().setId(UNRESTRICTED)
+    count == 0
+
+    when:
+    syncer.syncChangedResources()
+
+    then: "until it succeeds"
+    0 * permissionsResolver._
+  }
+
+  def "should not run a requested sync while a scheduled one is running"() {
+    given:
+    def lockManager = Mock(LockManager)
+    def permissionsResolver = Mock(PermissionsResolver)
+    def syncer = new UserRolesSyncer(
+        Optional.ofNullable(null),
+        registry,
+        lockManager,
+        repo,
+        permissionsResolver,
+        null,
+        [],
+        new FiatAdminConfig(),
+        new AlwaysUpHealthIndicator(),
+        1,
+        1,
+        1,
+        0,
+        -1,
+        1,
+        1000
+    )
+
+    when:
+    def count = syncer.syncAndReturn([])
+
+    then:
+    1 * lockManager.acquireLock({ it.lockName == "fiat.userrolessyncer.running" }, _ as Runnable) >>
+        Stub(LockManager.AcquireLockResponse) { getLockStatus() >> LockManager.LockStatus.TAKEN }
+    0 * permissionsResolver._
+    count == 0
+  }
+
+  @Unroll
+  def "should prune resources no longer provided after a full sync"() {
+    setup:
+    def appA = new Application().setName("appA")
+    def applicationProvider = Mock(ResourceProvider) {
+      getAll() >> ([appA] as Set)
+    }
+    def serviceAccountProvider = Mock(ResourceProvider) {
+      getAll() >> []
+    }
+    def permissionsRepository = Mock(PermissionsRepository) {
+      getAllByRoles(_) >> [:]
+    }
+    def permissionsResolver = Stub(PermissionsResolver) {
+      resolveUnrestrictedUser(_) >> new UserPermission().setId(UNRESTRICTED)
+    }
+
+    @Subject
+    def syncer = new UserRolesSyncer(
+        Optional.ofNullable(null),
+        registry,
+        acquiringLockManager(),
+        permissionsRepository,
+        permissionsResolver,
+        serviceAccountProvider,
+        [applicationProvider, serviceAccountProvider],
+        new FiatAdminConfig(),
+        new AlwaysUpHealthIndicator(),
+        1,
+        1,
+        1,
+        1,
+        -1,
+        1,
+        1000
+    )
+
+    when:
+    syncer.syncAndReturn(syncRoles)
+
+    then:
+    (fullsync ? 1 : 0) * permissionsRepository.pruneResources({ it as Set == [appA] as Set })
+
+    where:
+    syncRoles | fullsync
+    []        | true
+    ["roleA"] | false
+  }
+
+  def "should resolve and write users in parallel batches"() {
+    setup:
+    def role = new Role("role").setSource(Role.Source.EXTERNAL)
+    def users = (1..5).collect { new UserPermission().setId("user" + it).setRoles([role] as Set) }
+    users.each { repo.put(it) }
+
+    def serviceAccountProvider = Mock(ResourceProvider) {
+      getAll() >> []
+    }
+    def permissionsResolver = Mock(PermissionsResolver)
+
+    @Subject
+    def syncer = new UserRolesSyncer(
+        Optional.ofNullable(null),
+        registry,
+        acquiringLockManager(),
+        repo,
+        permissionsResolver,
+        serviceAccountProvider,
+        [serviceAccountProvider],
+        new FiatAdminConfig(),
+        new AlwaysUpHealthIndicator(),
+        1,
+        1,
+        1,
+        1,
+        -1,
+        2,
+        2
+    )
+
+    when:
+    def count = syncer.syncAndReturn([])
+
+    then:
+    1 * permissionsResolver.resolveUnrestrictedUser(_) >> new UserPermission().setId(UNRESTRICTED)
+    3 * permissionsResolver.resolve({ it.size() <= 2 }, _) >> { List<ExternalUser> batch, snapshot ->
+      batch.collectEntries {
+        [(it.id): new UserPermission().setId(it.id)
+                                      .setRoles([role] as Set)
+                                      .setAccounts([new Account().setName("account")] as Set)]
+      }
+    }
+    count == 5
+    repo.getAllById().findAll { it.key != UNRESTRICTED }.values()*.accounts*.name.flatten() == ["account"] * 5
+  }
+
   @Unroll
   def "should only schedule sync when in-service"() {
     given:
@@ -216,11 +480,16 @@ class UserRolesSyncerSpec extends Specification {
         null,
         null,
         null,
+        [],
+        new FiatAdminConfig(),
         new AlwaysUpHealthIndicator(),
         1,
         1,
         1,
-        1
+        1,
+        -1,
+        1,
+        1000
     )
 
     when:
@@ -239,6 +508,54 @@ class UserRolesSyncerSpec extends Specification {
     discoveryClient(InstanceStatus.STARTING)       || false
   }
 
+  def "should skip incremental syncs while a full sync is running"() {
+    given:
+    def lockManager = Mock(LockManager)
+    def permissionsResolver = Mock(PermissionsResolver)
+    def userRolesSyncer = new UserRolesSyncer(
+        Optional.ofNullable(null),
+        registry,
+        lockManager,
+        repo,
+        permissionsResolver,
+        null,
+        [],
+        new FiatAdminConfig(),
+        new AlwaysUpHealthIndicator(),
+        1,
+        1,
+        1,
+        1,
+        1,
+        1,
+        1000
+    )
+
+    when:
+    userRolesSyncer.scheduleIncremental()
+
+    then:
+    1 * lockManager.acquireLock({ it.lockName == "fiat.userrolessyncer.incremental" }, _ as Runnable) >> {
+      LockManager.LockOptions lockOptions, Runnable onLockAcquiredCallback -> onLockAcquiredCallback.run()
+    }
+    1 * lockManager.acquireLock({ it.lockName == "fiat.userrolessyncer.running" }, _ as Runnable) >>
+        Stub(LockManager.AcquireLockResponse) { getLockStatus() >> LockManager.LockStatus.TAKEN }
+    0 * permissionsResolver._
+  }
+
+  /** Runs whatever is passed to it, as if the lock was always free. */
+  LockManager acquiringLockManager() {
+    def acquired = Stub(LockManager.AcquireLockResponse) {
+      getLockStatus() >> LockManager.LockStatus.ACQUIRED
+    }
+    return Stub(LockManager) {
+      acquireLock(_, _ as Runnable) >> { LockManager.LockOptions lockOptions, Runnable onLockAcquired ->
+        onLockAcquired.run()
+        acquired
+      }
+    }
+  }
+
   DiscoveryClient discoveryClient(InstanceStatus instanceStatus) {
     return Mock(DiscoveryClient) {
       1 * getInstanceRemoteStatus() >> { return instanceStatus }
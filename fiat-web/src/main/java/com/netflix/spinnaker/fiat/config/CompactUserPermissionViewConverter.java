@@ -0,0 +1,64 @@
+/*
+ * Copyright 2020 Netflix, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.spinnaker.fiat.config;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.netflix.spinnaker.fiat.model.CompactUserPermissionView;
+import com.netflix.spinnaker.fiat.model.UserPermission;
+import java.io.IOException;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractHttpMessageConverter;
+
+/**
+ * Writes (and reads) user permission views as an unindented {@link CompactUserPermissionView} for
+ * clients that ask for {@link CompactUserPermissionView#MEDIA_TYPE}. It is registered after the
+ * JSON converter, so that requests accepting anything still get JSON.
+ */
+public class CompactUserPermissionViewConverter
+    extends AbstractHttpMessageConverter<UserPermission.View> {
+
+  private final ObjectMapper objectMapper =
+      new ObjectMapper()
+          .disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES)
+          .setSerializationInclusion(JsonInclude.Include.NON_NULL);
+
+  public CompactUserPermissionViewConverter() {
+    super(MediaType.parseMediaType(CompactUserPermissionView.MEDIA_TYPE));
+  }
+
+  @Override
+  protected boolean supports(Class<?> clazz) {
+    return UserPermission.View.class.equals(clazz);
+  }
+
+  @Override
+  protected UserPermission.View readInternal(
+      Class<? extends UserPermission.View> clazz, HttpInputMessage inputMessage)
+      throws IOException {
+    return objectMapper.readValue(inputMessage.getBody(), CompactUserPermissionView.class).toView();
+  }
+
+  @Override
+  protected void writeInternal(UserPermission.View view, HttpOutputMessage outputMessage)
+      throws IOException {
+    objectMapper.writeValue(outputMessage.getBody(), CompactUserPermissionView.of(view));
+  }
+}
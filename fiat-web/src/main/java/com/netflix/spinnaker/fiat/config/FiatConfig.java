@@ -31,6 +31,7 @@ import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Import;
 import org.springframework.core.Ordered;
 import org.springframework.http.MediaType;
+import org.springframework.http.converter.HttpMessageConverter;
 import org.springframework.web.servlet.config.annotation.ContentNegotiationConfigurer;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurerAdapter;
@@ -57,6 +58,11 @@ public class FiatConfig extends WebMvcConfigurerAdapter {
     configurer.favorPathExtension(false).defaultContentType(MediaType.APPLICATION_JSON);
   }
 
+  @Override
+  public void extendMessageConverters(List<HttpMessageConverter<?>> converters) {
+    converters.add(new CompactUserPermissionViewConverter());
+  }
+
   @Bean
   @ConditionalOnMissingBean(UserRolesProvider.class)
   UserRolesProvider defaultUserRolesProvider() {
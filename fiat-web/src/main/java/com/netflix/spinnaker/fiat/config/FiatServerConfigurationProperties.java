@@ -45,6 +45,9 @@ public class FiatServerConfigurationProperties {
 
   private boolean restrictApplicationCreation = false;
 
+  /** The most user IDs accepted by one request for the permissions of many users. */
+  private int maxBulkUserIds = 1000;
+
   private WriteMode writeMode = new WriteMode();
 
   @NestedConfigurationProperty
@@ -16,6 +16,7 @@
 
 package com.netflix.spinnaker.fiat.controllers;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.netflix.spectator.api.Id;
 import com.netflix.spectator.api.Registry;
@@ -30,12 +31,15 @@ import com.netflix.spinnaker.fiat.providers.ResourcePermissionProvider;
 import com.netflix.spinnaker.security.AuthenticatedRequest;
 import io.swagger.annotations.ApiOperation;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.*;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 import javax.annotation.Nonnull;
 import javax.servlet.http.HttpServletResponse;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.*;
 
 @Slf4j
@@ -75,20 +79,65 @@ public class AuthorizeController {
           "Used mostly for testing. Not really any real value to the rest of "
               + "the system. Disabled by default.")
   @RequestMapping(method = RequestMethod.GET)
-  public Set<UserPermission.View> getAll(HttpServletResponse response) throws IOException {
+  public void getAll(HttpServletResponse response) throws IOException {
     if (!configProps.isGetAllEnabled()) {
       response.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED, "/authorize is disabled");
-      return null;
+      return;
     }
 
     log.debug("UserPermissions requested for all users");
-    return permissionsRepository.getAllById().values().stream()
-        .map(UserPermission::getView)
-        .map(
-            u ->
-                u.setAllowAccessToUnknownApplications(
-                    configProps.isAllowAccessToUnknownApplications()))
-        .collect(Collectors.toSet());
+    // written as they are read, rather than holding the views of all users at once
+    response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+    try (JsonGenerator generator =
+        objectMapper.getFactory().createGenerator(response.getOutputStream())) {
+      generator.writeStartArray();
+      permissionsRepository.forEachUser(
+          permission -> {
+            try {
+              generator.writeObject(
+                  permission
+                      .getView()
+                      .setAllowAccessToUnknownApplications(
+                          configProps.isAllowAccessToUnknownApplications()));
+            } catch (IOException e) {
+              throw new UncheckedIOException(e);
+            }
+          });
+      generator.writeEndArray();
+    }
+  }
+
+  @ApiOperation(
+      value =
+          "Get the permissions of many users in one request, keyed by the requested user ID. Users "
+              + "without permissions are omitted.")
+  @RequestMapping(method = RequestMethod.POST)
+  public Map<String, UserPermission.View> getUserPermissions(
+      @RequestBody Collection<String> userIds, HttpServletResponse response) throws IOException {
+    if (userIds.size() > configProps.getMaxBulkUserIds()) {
+      response.sendError(
+          HttpServletResponse.SC_BAD_REQUEST,
+          "At most " + configProps.getMaxBulkUserIds() + " users can be requested at once");
+      return null;
+    }
+
+    Map<String, UserPermission> found =
+        permissionsRepository.getAll(
+            userIds.stream().map(ControllerSupport::convert).collect(Collectors.toSet()));
+
+    Map<String, UserPermission.View> views = new HashMap<>(userIds.size());
+    for (String userId : userIds) {
+      getUserPermissionOrDefault(userId, id -> Optional.ofNullable(found.get(id)))
+          .ifPresent(
+              permission ->
+                  views.put(
+                      userId,
+                      permission
+                          .getView()
+                          .setAllowAccessToUnknownApplications(
+                              configProps.isAllowAccessToUnknownApplications())));
+    }
+    return views;
   }
 
   @RequestMapping(value = "/{userId:.+}", method = RequestMethod.GET)
@@ -98,18 +147,18 @@ public class AuthorizeController {
 
   @RequestMapping(value = "/{userId:.+}/accounts", method = RequestMethod.GET)
   public Set<Account.View> getUserAccounts(@PathVariable String userId) {
-    return new HashSet<>(getUserPermissionView(userId).getAccounts());
+    return new HashSet<>(getUserResourcesView(userId, ResourceType.ACCOUNT).getAccounts());
   }
 
   @RequestMapping(value = "/{userId:.+}/roles", method = RequestMethod.GET)
   public Set<Role.View> getUserRoles(@PathVariable String userId) {
-    return new HashSet<>(getUserPermissionView(userId).getRoles());
+    return new HashSet<>(getUserResourcesView(userId, ResourceType.ROLE).getRoles());
   }
 
   @RequestMapping(value = "/{userId:.+}/accounts/{accountName:.+}", method = RequestMethod.GET)
   public Account.View getUserAccount(
       @PathVariable String userId, @PathVariable String accountName) {
-    return getUserPermissionView(userId).getAccounts().stream()
+    return getUserResourceView(userId, ResourceType.ACCOUNT, accountName).getAccounts().stream()
         .filter(account -> accountName.equalsIgnoreCase(account.getName()))
         .findFirst()
         .orElseThrow(NotFoundException::new);
@@ -117,7 +166,7 @@ public class AuthorizeController {
 
   @RequestMapping(value = "/{userId:.+}/applications", method = RequestMethod.GET)
   public Set<Application.View> getUserApplications(@PathVariable String userId) {
-    return new HashSet<>(getUserPermissionView(userId).getApplications());
+    return new HashSet<>(getUserResourcesView(userId, ResourceType.APPLICATION).getApplications());
   }
 
   @RequestMapping(
@@ -125,7 +174,8 @@ public class AuthorizeController {
       method = RequestMethod.GET)
   public Application.View getUserApplication(
       @PathVariable String userId, @PathVariable String applicationName) {
-    return getUserPermissionView(userId).getApplications().stream()
+    return getUserResourceView(userId, ResourceType.APPLICATION, applicationName)
+        .getApplications().stream()
         .filter(application -> applicationName.equalsIgnoreCase(application.getName()))
         .findFirst()
         .orElseThrow(NotFoundException::new);
@@ -135,7 +185,8 @@ public class AuthorizeController {
   public Set<? extends Viewable.BaseView> getServiceAccounts(
       @PathVariable String userId,
       @RequestParam(name = "expand", defaultValue = "false") boolean expand) {
-    Set<ServiceAccount.View> serviceAccounts = getUserPermissionView(userId).getServiceAccounts();
+    Set<ServiceAccount.View> serviceAccounts =
+        getUserResourcesView(userId, ResourceType.SERVICE_ACCOUNT).getServiceAccounts();
     if (!expand) {
       return serviceAccounts;
     }
@@ -151,7 +202,10 @@ public class AuthorizeController {
       method = RequestMethod.GET)
   public ServiceAccount.View getServiceAccount(
       @PathVariable String userId, @PathVariable String serviceAccountName) {
-    return getUserPermissionOrDefault(userId).orElseThrow(NotFoundException::new).getView()
+    return getUserResourceView(
+            userId,
+            ResourceType.SERVICE_ACCOUNT,
+            ControllerSupport.convert(serviceAccountName))
         .getServiceAccounts().stream()
         .filter(
             serviceAccount ->
@@ -241,10 +295,18 @@ public class AuthorizeController {
   }
 
   private Optional<UserPermission> getUserPermissionOrDefault(String userId) {
+    return getUserPermissionOrDefault(userId, permissionsRepository::get);
+  }
+
+  /**
+   * Looks the user up with the given repository read, falling back as configured if the user has
+   * no stored permissions. Fallback permissions are always complete.
+   */
+  private Optional<UserPermission> getUserPermissionOrDefault(
+      String userId, Function<String, Optional<UserPermission>> read) {
     String authenticatedUserId = AuthenticatedRequest.getSpinnakerUser().orElse(null);
 
-    UserPermission userPermission =
-        permissionsRepository.get(ControllerSupport.convert(userId)).orElse(null);
+    UserPermission userPermission = read.apply(ControllerSupport.convert(userId)).orElse(null);
 
     if (userPermission != null) {
       registry
@@ -307,4 +369,21 @@ public class AuthorizeController {
         .getView()
         .setAllowAccessToUnknownApplications(configProps.isAllowAccessToUnknownApplications());
   }
+
+  /** A view of only the user's resources of the given type. */
+  private UserPermission.View getUserResourcesView(String userId, ResourceType resourceType) {
+    return getUserPermissionOrDefault(
+            userId, id -> permissionsRepository.getResources(id, resourceType))
+        .orElseThrow(NotFoundException::new)
+        .getView();
+  }
+
+  /** A view of only the user's resource of the given type and name, if the user has it. */
+  private UserPermission.View getUserResourceView(
+      String userId, ResourceType resourceType, String resourceName) {
+    return getUserPermissionOrDefault(
+            userId, id -> permissionsRepository.getResource(id, resourceType, resourceName))
+        .orElseThrow(NotFoundException::new)
+        .getView();
+  }
 }
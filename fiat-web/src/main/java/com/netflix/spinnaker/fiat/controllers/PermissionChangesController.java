@@ -0,0 +1,47 @@
+/*
+ * Copyright 2020 Netflix, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.spinnaker.fiat.controllers;
+
+import com.netflix.spinnaker.fiat.model.PermissionChanges;
+import com.netflix.spinnaker.fiat.permissions.PermissionsRepository;
+import io.swagger.annotations.ApiOperation;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+@RestController
+@RequestMapping("/permissions")
+public class PermissionChangesController {
+
+  private final PermissionsRepository permissionsRepository;
+
+  @Autowired
+  public PermissionChangesController(PermissionsRepository permissionsRepository) {
+    this.permissionsRepository = permissionsRepository;
+  }
+
+  @ApiOperation(
+      value =
+          "Lists the users whose permissions changed after the given sequence number. Without one, "
+              + "only returns the current sequence number to start following changes from.")
+  @RequestMapping(value = "/changes", method = RequestMethod.GET)
+  public PermissionChanges getChanges(@RequestParam(required = false) Long since) {
+    return permissionsRepository.getChangesSince(since).orElseThrow(NotFoundException::new);
+  }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2020 Netflix, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.spinnaker.fiat.controllers;
+
+import com.netflix.spinnaker.fiat.model.Authorization;
+import com.netflix.spinnaker.fiat.model.UserPermission;
+import com.netflix.spinnaker.fiat.model.resources.Authorizable;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import org.springframework.core.MethodParameter;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.http.server.ServerHttpResponse;
+import org.springframework.web.bind.annotation.ControllerAdvice;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyAdvice;
+
+/**
+ * Tags single user permission views with an ETag derived from their content, and answers requests
+ * whose If-None-Match already has it with a bodiless 304 instead of the (possibly very large) view.
+ *
+ * <p>The tag is computed from a sorted rendering of the view rather than its JSON, whose set
+ * ordering can differ between fiat instances, so that any instance tags equal views the same. As
+ * the same view may be sent in different forms (e.g. the compact one), the negotiated media type is
+ * part of the tag and responses vary by Accept.
+ */
+@ControllerAdvice
+public class UserPermissionEtagAdvice implements ResponseBodyAdvice<UserPermission.View> {
+
+  private static final String SEPARATOR = "\u0000";
+
+  @Override
+  public boolean supports(MethodParameter returnType, Class converterType) {
+    return UserPermission.View.class.equals(returnType.getParameterType());
+  }
+
+  @Override
+  public UserPermission.View beforeBodyWrite(
+      UserPermission.View body,
+      MethodParameter returnType,
+      MediaType selectedContentType,
+      Class selectedConverterType,
+      ServerHttpRequest request,
+      ServerHttpResponse response) {
+    if (body == null || request.getMethod() != HttpMethod.GET) {
+      return body;
+    }
+
+    String etag = etag(body, selectedContentType);
+    response.getHeaders().setETag(etag);
+    response.getHeaders().add(HttpHeaders.VARY, HttpHeaders.ACCEPT);
+    List<String> ifNoneMatch = request.getHeaders().getIfNoneMatch();
+    // compressing proxies may weaken the tag, which still identifies the same content
+    if (ifNoneMatch.contains(etag) || ifNoneMatch.contains("W/" + etag)) {
+      response.setStatusCode(HttpStatus.NOT_MODIFIED);
+      return null;
+    }
+    return body;
+  }
+
+  static String etag(UserPermission.View view, MediaType mediaType) {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+
+    // parameters like the charset don't change the form the view is sent in
+    update(
+        digest,
+        Collections.singletonList(
+            mediaType == null ? "" : mediaType.getType() + "/" + mediaType.getSubtype()));
+    update(
+        digest,
+        Collections.singletonList(
+            view.getName()
+                + SEPARATOR
+                + view.isAdmin()
+                + SEPARATOR
+                + view.isLegacyFallback()
+                + SEPARATOR
+                + view.isAllowAccessToUnknownApplications()));
+    update(digest, authorizables(view.getAccounts()));
+    update(digest, authorizables(view.getApplications()));
+    update(digest, authorizables(view.getBuildServices()));
+    update(
+        digest,
+        render(view.getServiceAccounts(), sa -> sa.getName() + SEPARATOR + sa.getMemberOf()));
+    update(digest, render(view.getRoles(), role -> role.getName() + SEPARATOR + role.getSource()));
+
+    StringBuilder etag = new StringBuilder("\"");
+    for (byte b : digest.digest()) {
+      etag.append(String.format("%02x", b));
+    }
+    return etag.append('"').toString();
+  }
+
+  private static List<String> authorizables(Collection<? extends Authorizable> resources) {
+    return render(
+        resources,
+        resource ->
+            resource.getName()
+                + SEPARATOR
+                + (resource.getAuthorizations() == null
+                    ? ""
+                    : resource.getAuthorizations().stream()
+                        .map(Authorization::name)
+                        .sorted()
+                        .collect(Collectors.joining(","))));
+  }
+
+  private static <T> List<String> render(Collection<T> resources, Function<T, String> renderer) {
+    if (resources == null) {
+      return Collections.emptyList();
+    }
+    List<String> rendered = new ArrayList<>(resources.size());
+    resources.forEach(resource -> rendered.add(renderer.apply(resource)));
+    Collections.sort(rendered);
+    return rendered;
+  }
+
+  private static void update(MessageDigest digest, List<String> lines) {
+    for (String line : lines) {
+      digest.update(line.getBytes(StandardCharsets.UTF_8));
+      digest.update((byte) '\n');
+    }
+    // separates the sections, so that lines can't shift from one to another
+    digest.update((byte) 0x1e);
+  }
+}
@@ -23,10 +23,12 @@ import com.netflix.spinnaker.config.FiatSystemTest
 import com.netflix.spinnaker.config.TestUserRoleProviderConfig
 import com.netflix.spinnaker.fiat.config.FiatServerConfigurationProperties
 import com.netflix.spinnaker.fiat.model.Authorization
+import com.netflix.spinnaker.fiat.model.CompactUserPermissionView
 import com.netflix.spinnaker.fiat.model.UserPermission
 import com.netflix.spinnaker.fiat.model.resources.Account
 import com.netflix.spinnaker.fiat.model.resources.Application
 import com.netflix.spinnaker.fiat.model.resources.Permissions
+import com.netflix.spinnaker.fiat.model.resources.ResourceType
 import com.netflix.spinnaker.fiat.permissions.PermissionsRepository
 import com.netflix.spinnaker.fiat.permissions.PermissionsResolver
 import com.netflix.spinnaker.fiat.providers.ResourcePermissionProvider
@@ -45,8 +47,12 @@ import spock.lang.Unroll
 
 import javax.servlet.http.HttpServletResponse
 
+import static org.hamcrest.Matchers.not
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status
 
 @FiatSystemTest
@@ -155,6 +161,115 @@ class AuthorizeControllerSpec extends Specification {
   }
 
 
+  def "should send the compact form of a user's permissions when asked for it"() {
+    given:
+    permissionsRepository.put(unrestrictedUser)
+    permissionsRepository.put(roleAUser)
+
+    when:
+    def response = mockMvc.perform(get("/authorize/roleAUser")
+                                       .accept(CompactUserPermissionView.MEDIA_TYPE + ", application/json;q=0.9"))
+                          .andExpect(status().isOk())
+                          .andReturn().response
+
+    then:
+    response.contentType.startsWith(CompactUserPermissionView.MEDIA_TYPE)
+    objectMapper.readValue(response.contentAsString, CompactUserPermissionView).toView() ==
+        roleAUser.merge(unrestrictedUser).view
+
+    and: "everyone else still gets JSON"
+    mockMvc.perform(get("/authorize/roleAUser").accept("*/*"))
+           .andExpect(status().isOk())
+           .andExpect(content().contentTypeCompatibleWith("application/json"))
+  }
+
+  def "should answer with 304 when the user's permissions still match the ETag"() {
+    given:
+    permissionsRepository.put(unrestrictedUser)
+    permissionsRepository.put(roleAUser)
+
+    when:
+    def etag = mockMvc.perform(get("/authorize/roleAUser"))
+                      .andExpect(status().isOk())
+                      .andReturn().response.getHeader("ETag")
+
+    then:
+    etag != null
+    mockMvc.perform(get("/authorize/roleAUser").header("If-None-Match", etag))
+           .andExpect(status().isNotModified())
+           .andExpect(header().string("Vary", "Accept"))
+           .andExpect(content().string(""))
+
+    and: "the compact form of the same permissions has its own tag"
+    mockMvc.perform(get("/authorize/roleAUser")
+                        .accept(CompactUserPermissionView.MEDIA_TYPE)
+                        .header("If-None-Match", etag))
+           .andExpect(status().isOk())
+           .andExpect(header().string("ETag", not(etag)))
+
+    when:
+    permissionsRepository.put(roleAUser.setAccounts([new Account().setName("newAccount")] as Set))
+
+    then:
+    mockMvc.perform(get("/authorize/roleAUser").header("If-None-Match", etag))
+           .andExpect(status().isOk())
+           .andExpect(header().exists("ETag"))
+  }
+
+  def "should get many users from repo in one request"() {
+    given:
+    permissionsRepository.put(unrestrictedUser)
+    permissionsRepository.put(roleAUser)
+    permissionsRepository.put(roleBUser)
+
+    when:
+    def expected = objectMapper.writeValueAsString([
+        roleAUser: roleAUser.merge(unrestrictedUser).view,
+        roleBUser: roleBUser.merge(unrestrictedUser).view,
+        anonymous: unrestrictedUser.view
+    ])
+
+    then:
+    mockMvc.perform(post("/authorize")
+                        .content(objectMapper.writeValueAsString(["roleAUser", "roleBUser", "anonymous", "unknownUser"])))
+           .andExpect(status().isOk())
+           .andExpect(content().json(expected))
+           .andExpect(jsonPath('$.unknownUser').doesNotExist())
+  }
+
+  def "should stream the permissions of all users"() {
+    given:
+    fiatServerConfigurationProperties.setGetAllEnabled(true)
+    permissionsRepository.put(unrestrictedUser)
+    permissionsRepository.put(roleAUser)
+    permissionsRepository.put(roleBUser)
+
+    when:
+    def body = mockMvc.perform(get("/authorize"))
+                      .andExpect(status().isOk())
+                      .andReturn().response.contentAsString
+    def views = objectMapper.readValue(body, List)
+
+    then:
+    views*.name as Set == [unrestrictedUser.id, roleAUser.id, roleBUser.id] as Set
+
+    cleanup:
+    fiatServerConfigurationProperties.setGetAllEnabled(false)
+  }
+
+  def "should reject requests for too many users at once"() {
+    given:
+    fiatServerConfigurationProperties.setMaxBulkUserIds(2)
+
+    expect:
+    mockMvc.perform(post("/authorize")
+                        .content(objectMapper.writeValueAsString(["roleAUser", "roleBUser", "anonymous"])))
+           .andExpect(status().isBadRequest())
+
+    cleanup:
+    fiatServerConfigurationProperties.setMaxBulkUserIds(1000)
+  }
+
   def "should get user from repo"() {
     setup:
     PermissionsRepository repository = Mock(PermissionsRepository)
@@ -203,21 +318,23 @@ class AuthorizeControllerSpec extends Specification {
     controller.getUserAccounts("foo")
 
     then:
-    1 * repository.get("foo") >> Optional.empty()
+    1 * repository.getResources("foo", ResourceType.ACCOUNT) >> Optional.empty()
     thrown NotFoundException
 
     when:
     def result = controller.getUserAccounts("foo")
 
     then:
-    1 * repository.get("foo") >> Optional.of(foo)
+    1 * repository.getResources("foo", ResourceType.ACCOUNT) >> Optional.of(foo)
+    0 * repository.get(_)
     result == [bar.getView([] as Set, false)] as Set
 
     when:
     result = controller.getUserAccount("foo", "bar")
 
     then:
-    1 * repository.get("foo") >> Optional.of(foo)
+    1 * repository.getResource("foo", ResourceType.ACCOUNT, "bar") >> Optional.of(foo)
+    0 * repository.get(_)
     result == bar.getView([] as Set, false)
   }
 